@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic in-memory measurement lines shared by the stage benchmarks, together with the offsets of every line start,
+ * semicolon and newline, so that each benchmark can isolate a single stage.
+ */
+final class BenchmarkData {
+
+    static final int ROWS = 1 << 16;
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzäéöüß -";
+
+    final String[] stations;
+    final byte[] lines;
+    final int[] lineStarts;
+    final int[] semicolons;
+    final int[] lineEnds;
+    final int[] stationIds;
+    final int[] temperatures;
+
+    BenchmarkData(int stationCount, int rowCount) {
+        Random random = new Random(42);
+
+        stations = new String[stationCount];
+        for (int i = 0; i < stationCount; i++) {
+            stations[i] = station(random, i);
+        }
+
+        lineStarts = new int[rowCount];
+        semicolons = new int[rowCount];
+        lineEnds = new int[rowCount];
+        stationIds = new int[rowCount];
+        temperatures = new int[rowCount];
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rowCount * 16);
+        for (int i = 0; i < rowCount; i++) {
+            int station = random.nextInt(stationCount);
+            int temperature = random.nextInt(1999) - 999;
+            byte[] name = stations[station].getBytes(StandardCharsets.UTF_8);
+
+            lineStarts[i] = out.size();
+            out.writeBytes(name);
+            semicolons[i] = out.size();
+            int abs = Math.abs(temperature);
+            out.writeBytes(((temperature < 0 ? ";-" : ";") + abs / 10 + "." + abs % 10).getBytes(StandardCharsets.UTF_8));
+            lineEnds[i] = out.size();
+            out.write('\n');
+
+            stationIds[i] = station;
+            temperatures[i] = temperature;
+        }
+        lines = out.toByteArray();
+    }
+
+    private static String station(Random random, int index) {
+        int length = 3 + random.nextInt(24);
+        StringBuilder name = new StringBuilder(length + 6);
+        name.append(Character.toUpperCase(ALPHABET.charAt(random.nextInt(26))));
+        for (int i = 1; i < length; i++) {
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        // ensure uniqueness
+        return name.append(index).toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dev.morling.onebrc.engine.LineSplitter;
+
+/**
+ * Search for the ';' delimiter (and hashing of the station name on the way), measured per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Benchmark)
+public class DelimiterBenchmark {
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    private BenchmarkData data;
+    private ByteBuffer buffer;
+    private boolean bigEndian;
+    private CalculateAverage_royvanrijn royvanrijn;
+    private int[] delimiterPointerAndHash;
+    private long[] cityNameAsLongArray;
+    private MemorySegment segment;
+    private LineSplitter.Batch batch;
+
+    @Setup
+    public void setup() {
+        data = new BenchmarkData(stations, BenchmarkData.ROWS);
+        buffer = ByteBuffer.wrap(data.lines).order(ByteOrder.nativeOrder());
+        bigEndian = buffer.order().equals(ByteOrder.BIG_ENDIAN);
+        royvanrijn = new CalculateAverage_royvanrijn();
+        delimiterPointerAndHash = new int[2];
+        cityNameAsLongArray = new long[16];
+        segment = MemorySegment.ofArray(data.lines);
+        batch = new LineSplitter.Batch(1024);
+    }
+
+    /**
+     * Byte-at-a-time scan with a {@code 31 * hash + b} hash, as most of the implementations do it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void scalar(Blackhole blackhole) {
+        byte[] lines = data.lines;
+        int[] lineStarts = data.lineStarts;
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            int hash = 0;
+            int position = lineStarts[i];
+            for (byte b; (b = lines[position]) != ';'; position++) {
+                hash = 31 * hash + b;
+            }
+            blackhole.consume(position);
+            blackhole.consume(hash);
+        }
+    }
+
+    /**
+     * {@code findNextDelimiterAndCalculateHash()} of royvanrijn (SWAR).
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void royvanrijn(Blackhole blackhole) {
+        int[] lineStarts = data.lineStarts;
+        int limit = buffer.limit();
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            royvanrijn.findNextDelimiterAndCalculateHash(buffer, CalculateAverage_royvanrijn.SEPARATOR_PATTERN, lineStarts[i], limit,
+                    delimiterPointerAndHash, cityNameAsLongArray, bigEndian);
+            blackhole.consume(delimiterPointerAndHash[0]);
+            blackhole.consume(delimiterPointerAndHash[1]);
+        }
+    }
+
+    /**
+     * {@link LineSplitter}, finding ';' and '\n' of all lines with the Vector API, in batches of 1024 lines.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void lineSplitter(Blackhole blackhole) {
+        long position = 0;
+        long size = segment.byteSize();
+
+        while (position < size) {
+            position = LineSplitter.split(segment, position, size, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                blackhole.consume(batch.semicolon(i));
+                blackhole.consume(batch.lineEnd(i));
+            }
+        }
+    }
+}
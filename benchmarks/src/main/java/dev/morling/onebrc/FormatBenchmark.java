@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.engine.StationStats;
+
+/**
+ * Formatting of the sorted result into the {@code {A=min/mean/max, ...}} output string.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    private TreeMap<String, CalculateAverage_royvanrijn.Measurement> measurements;
+    private SortedMap<String, StationStats> stationStats;
+
+    @Setup
+    public void setup() {
+        BenchmarkData data = new BenchmarkData(stations, BenchmarkData.ROWS);
+
+        measurements = new TreeMap<>();
+        stationStats = new TreeMap<>();
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            String station = data.stations[data.stationIds[i]];
+            measurements.computeIfAbsent(station, s -> new CalculateAverage_royvanrijn.Measurement()).updateWith(data.temperatures[i]);
+            stationStats.computeIfAbsent(station, s -> new StationStats()).add(data.temperatures[i]);
+        }
+    }
+
+    @Benchmark
+    public String royvanrijn() {
+        return measurements.toString();
+    }
+
+    @Benchmark
+    public String stationStats() {
+        return stationStats.toString();
+    }
+}
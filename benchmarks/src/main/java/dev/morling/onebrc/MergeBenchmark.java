@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The final phase: merging the per-thread tables into one result, sorted by station name. The merge is destructive, so the
+ * tables are rebuilt before each invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    @Param({ "8", "32" })
+    int tables;
+
+    private BenchmarkData data;
+    private CalculateAverage_artsiomkorzun.Aggregates[] aggregates;
+    private CalculateAverage_royvanrijn.MeasurementRepository[] repositories;
+
+    @Setup(Level.Trial)
+    public void setupData() {
+        data = new BenchmarkData(stations, BenchmarkData.ROWS);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupTables() {
+        CalculateAverage_royvanrijn royvanrijn = new CalculateAverage_royvanrijn();
+        CalculateAverage_artsiomkorzun.Row row = new CalculateAverage_artsiomkorzun.Row();
+        int[] delimiterPointerAndHash = new int[2];
+        long[] nameLongs = new long[16];
+
+        aggregates = new CalculateAverage_artsiomkorzun.Aggregates[tables];
+        repositories = new CalculateAverage_royvanrijn.MeasurementRepository[tables];
+
+        for (int t = 0; t < tables; t++) {
+            aggregates[t] = new CalculateAverage_artsiomkorzun.Aggregates();
+            repositories[t] = royvanrijn.new MeasurementRepository();
+
+            for (int i = 0; i < stations; i++) {
+                int temperature = data.temperatures[(t * stations + i) % BenchmarkData.ROWS];
+                ByteBuffer line = ByteBuffer.wrap((data.stations[i] + ";0.0\n").getBytes(StandardCharsets.UTF_8)).order(ByteOrder.nativeOrder());
+
+                CalculateAverage_artsiomkorzun.Aggregator.parse(line, row, 0);
+                row.temperature = temperature;
+                aggregates[t].add(row);
+
+                royvanrijn.findNextDelimiterAndCalculateHash(line, CalculateAverage_royvanrijn.SEPARATOR_PATTERN, 0, line.limit(), delimiterPointerAndHash,
+                        nameLongs, line.order().equals(ByteOrder.BIG_ENDIAN));
+                repositories[t].update(nameLongs, line, delimiterPointerAndHash[0], delimiterPointerAndHash[1]).updateWith(temperature);
+            }
+        }
+    }
+
+    /**
+     * Pairwise table merge, then {@code Arrays.sort()} of the merged table.
+     */
+    @Benchmark
+    public CalculateAverage_artsiomkorzun.Aggregates artsiomkorzun() {
+        CalculateAverage_artsiomkorzun.Aggregates result = aggregates[0];
+        for (int t = 1; t < tables; t++) {
+            result = CalculateAverage_artsiomkorzun.Aggregator.merge(result, aggregates[t]);
+        }
+        return result.sort();
+    }
+
+    /**
+     * Parallel stream of all table entries, collected into a {@code TreeMap}.
+     */
+    @Benchmark
+    public TreeMap<String, CalculateAverage_royvanrijn.Measurement> royvanrijn() {
+        return Arrays.stream(repositories).parallel()
+                .flatMap(CalculateAverage_royvanrijn.MeasurementRepository::get)
+                .collect(Collectors.toMap(e -> e.cityName(), CalculateAverage_royvanrijn.MeasurementRepository.Entry::measurement,
+                        CalculateAverage_royvanrijn.Measurement::updateWith, TreeMap::new));
+    }
+}
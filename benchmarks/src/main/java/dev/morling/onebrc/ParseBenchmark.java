@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dev.morling.onebrc.engine.TemperatureDecoder;
+
+/**
+ * Temperature parsing, measured per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    private BenchmarkData data;
+    private ByteBuffer buffer;
+    private CalculateAverage_artsiomkorzun.Row row;
+
+    @Setup
+    public void setup() {
+        data = new BenchmarkData(stations, BenchmarkData.ROWS);
+        buffer = ByteBuffer.wrap(data.lines);
+        row = new CalculateAverage_artsiomkorzun.Row();
+    }
+
+    /**
+     * {@code parseNumFromLine()} of gabrielreid, given the sign and length of the number as the line splitter provides them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void gabrielreid(Blackhole blackhole) {
+        byte[] lines = data.lines;
+        int[] semicolons = data.semicolons;
+        int[] lineEnds = data.lineEnds;
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            int offset = semicolons[i] + 1;
+            int multiplier = 1;
+            if (lines[offset] == '-') {
+                multiplier = -1;
+                offset++;
+            }
+            blackhole.consume(CalculateAverage_gabrielreid.parseNumFromLine(lines, offset, lineEnds[i] - offset, multiplier));
+        }
+    }
+
+    /**
+     * {@code Aggregator.parse()} of artsiomkorzun. It parses the complete line, so it includes copying and hashing the station
+     * name.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void artsiomkorzun(Blackhole blackhole) {
+        ByteBuffer buffer = this.buffer;
+        CalculateAverage_artsiomkorzun.Row row = this.row;
+
+        for (int offset = 0; offset < buffer.limit();) {
+            offset = CalculateAverage_artsiomkorzun.Aggregator.parse(buffer, row, offset);
+            blackhole.consume(row.temperature);
+        }
+    }
+
+    /**
+     * {@link TemperatureDecoder}, branch-free on one little-endian word read after the ';'.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public void swar(Blackhole blackhole) {
+        byte[] lines = data.lines;
+        int[] semicolons = data.semicolons;
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            long word = TemperatureDecoder.word(lines, semicolons[i] + 1, lines.length);
+            blackhole.consume(TemperatureDecoder.decode(word));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hash table insert and lookup, measured per row. The keys are parsed upfront, so only the table itself is measured.
+ * {@code *Lookup} updates a table which already contains all stations, {@code *Build} starts from an empty table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Benchmark)
+public class TableBenchmark {
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    private BenchmarkData data;
+
+    private CalculateAverage_artsiomkorzun.Row[] rows;
+    private CalculateAverage_artsiomkorzun.Aggregates aggregates;
+
+    private CalculateAverage_royvanrijn royvanrijn;
+    private long[][] nameLongs;
+    private int[] nameHashes;
+    private ByteBuffer[] names;
+    private CalculateAverage_royvanrijn.MeasurementRepository repository;
+
+    @Setup
+    public void setup() {
+        data = new BenchmarkData(stations, BenchmarkData.ROWS);
+
+        rows = new CalculateAverage_artsiomkorzun.Row[stations];
+        royvanrijn = new CalculateAverage_royvanrijn();
+        nameLongs = new long[stations][];
+        nameHashes = new int[stations];
+        names = new ByteBuffer[stations];
+
+        int[] delimiterPointerAndHash = new int[2];
+        for (int i = 0; i < stations; i++) {
+            ByteBuffer line = ByteBuffer.wrap((data.stations[i] + ";0.0\n").getBytes(StandardCharsets.UTF_8)).order(ByteOrder.nativeOrder());
+
+            rows[i] = new CalculateAverage_artsiomkorzun.Row();
+            CalculateAverage_artsiomkorzun.Aggregator.parse(line, rows[i], 0);
+
+            nameLongs[i] = new long[16];
+            royvanrijn.findNextDelimiterAndCalculateHash(line, CalculateAverage_royvanrijn.SEPARATOR_PATTERN, 0, line.limit(), delimiterPointerAndHash,
+                    nameLongs[i], line.order().equals(ByteOrder.BIG_ENDIAN));
+            nameHashes[i] = delimiterPointerAndHash[1];
+            names[i] = line.slice(0, delimiterPointerAndHash[0]);
+        }
+
+        aggregates = new CalculateAverage_artsiomkorzun.Aggregates();
+        artsiomkorzun(aggregates);
+        repository = royvanrijn.new MeasurementRepository();
+        royvanrijn(repository);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public CalculateAverage_artsiomkorzun.Aggregates artsiomkorzunLookup() {
+        return artsiomkorzun(aggregates);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public CalculateAverage_artsiomkorzun.Aggregates artsiomkorzunBuild() {
+        return artsiomkorzun(new CalculateAverage_artsiomkorzun.Aggregates());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public CalculateAverage_royvanrijn.MeasurementRepository royvanrijnLookup() {
+        return royvanrijn(repository);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.ROWS)
+    public CalculateAverage_royvanrijn.MeasurementRepository royvanrijnBuild() {
+        return royvanrijn(royvanrijn.new MeasurementRepository());
+    }
+
+    private CalculateAverage_artsiomkorzun.Aggregates artsiomkorzun(CalculateAverage_artsiomkorzun.Aggregates aggregates) {
+        int[] stationIds = data.stationIds;
+        int[] temperatures = data.temperatures;
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            CalculateAverage_artsiomkorzun.Row row = rows[stationIds[i]];
+            row.temperature = temperatures[i];
+            aggregates.add(row);
+        }
+        return aggregates;
+    }
+
+    private CalculateAverage_royvanrijn.MeasurementRepository royvanrijn(CalculateAverage_royvanrijn.MeasurementRepository repository) {
+        int[] stationIds = data.stationIds;
+        int[] temperatures = data.temperatures;
+
+        for (int i = 0; i < BenchmarkData.ROWS; i++) {
+            int station = stationIds[i];
+            ByteBuffer name = names[station];
+            name.position(0);
+            repository.update(nameLongs[station], name, name.limit(), nameHashes[station]).updateWith(temperatures[i]);
+        }
+        return repository;
+    }
+}
@@ -19,12 +19,18 @@ import static java.util.stream.Collectors.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.stream.Collector;
 
-public class CalculateAverage {
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.StationStats;
+
+public class CalculateAverage implements AggregationEngine {
 
     private static final String FILE = "./measurements.txt";
 
@@ -61,7 +67,14 @@ public class CalculateAverage {
         // .collect(toMap(e -> e.getKey(), e -> Math.round(e.getValue() * 10.0) / 10.0)));
         // System.out.println(measurements1);
 
-        Collector<Measurement, MeasurementAggregator, ResultRow> collector = Collector.of(
+        Map<String, ResultRow> measurements = new TreeMap<>();
+        aggregate(Paths.get(FILE)).forEach((station, agg) -> measurements.put(station, new ResultRow(agg.min, agg.sum / agg.count, agg.max)));
+
+        System.out.println(measurements);
+    }
+
+    private static Map<String, MeasurementAggregator> aggregate(Path file) throws IOException {
+        Collector<Measurement, MeasurementAggregator, MeasurementAggregator> collector = Collector.of(
                 MeasurementAggregator::new,
                 (a, m) -> {
                     a.min = Math.min(a.min, m.value);
@@ -77,15 +90,29 @@ public class CalculateAverage {
                     res.count = agg1.count + agg2.count;
 
                     return res;
-                },
-                agg -> {
-                    return new ResultRow(agg.min, agg.sum / agg.count, agg.max);
                 });
 
-        Map<String, ResultRow> measurements = new TreeMap<>(Files.lines(Paths.get(FILE))
-                .map(l -> new Measurement(l.split(";")))
-                .collect(groupingBy(m -> m.station(), collector)));
+        try (var lines = Files.lines(file)) {
+            return lines
+                    .map(l -> new Measurement(l.split(";")))
+                    .collect(groupingBy(m -> m.station(), collector));
+        }
+    }
 
-        System.out.println(measurements);
+    @Override
+    public String name() {
+        return "baseline";
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        aggregate(input).forEach((station, agg) -> results.put(station,
+                new StationStats(tenths(agg.min), tenths(agg.max), Math.round(agg.sum * 10.0), agg.count)));
+        return results;
+    }
+
+    private static int tenths(double value) {
+        return (int) Math.round(value * 10.0);
     }
 }
@@ -24,18 +24,24 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
-public class CalculateAverage_artsiomkorzun {
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineMetrics;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.ResultSnapshot;
+import dev.morling.onebrc.engine.SegmentScheduler;
+import dev.morling.onebrc.engine.StationStats;
+
+public class CalculateAverage_artsiomkorzun implements AggregationEngine {
 
     private static final Path FILE = Path.of("./measurements.txt");
-    private static final long FILE_SIZE = size(FILE);
 
     private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
     private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
-    private static final int SEGMENT_COUNT = (int) ((FILE_SIZE + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
     private static final int SEGMENT_OVERLAP = 1024;
 
     public static void main(String[] args) throws Exception {
@@ -46,16 +52,45 @@ public class CalculateAverage_artsiomkorzun {
         // System.err.println("Time: " + (end - start));
         // }
 
-        execute();
+        Aggregates aggregates = execute(FILE, PARALLELISM, SEGMENT_SIZE);
+        print(aggregates);
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        execute(input, options).visit(aggregate -> results.put(new String(aggregate.station),
+                new StationStats(aggregate.min, aggregate.max, aggregate.sum, aggregate.count)));
+        return results;
     }
 
-    private static void execute() throws Exception {
-        AtomicInteger counter = new AtomicInteger();
+    @Override
+    public void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        execute(input, options).visit(aggregate -> writer.add(aggregate.station, 0, aggregate.station.length,
+                aggregate.min, aggregate.max, aggregate.sum, aggregate.count));
+        writer.write(snapshot);
+    }
+
+    private static Aggregates execute(Path input, EngineOptions options) throws IOException {
+        try {
+            return execute(input, options.parallelism(), options.segmentSize());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static Aggregates execute(Path file, int parallelism, int segmentSize) throws InterruptedException {
+        long fileSize = size(file);
+
+        SegmentScheduler scheduler = SegmentScheduler.of(0, fileSize, new EngineOptions(parallelism, segmentSize));
         AtomicReference<Aggregates> result = new AtomicReference<>();
-        Aggregator[] aggregators = new Aggregator[PARALLELISM];
+        Aggregator[] aggregators = new Aggregator[scheduler.workers()];
 
         for (int i = 0; i < aggregators.length; i++) {
-            aggregators[i] = new Aggregator(counter, result);
+            aggregators[i] = new Aggregator(file, fileSize, scheduler, result);
             aggregators[i].start();
         }
 
@@ -64,9 +99,11 @@ public class CalculateAverage_artsiomkorzun {
         }
 
         Aggregates aggregates = result.get();
+        if (aggregates == null) {
+            throw new IllegalStateException("Aggregation failed, see the aggregator thread errors");
+        }
         aggregates.sort();
-
-        print(aggregates);
+        return aggregates;
     }
 
     private static void print(Aggregates aggregates) {
@@ -92,7 +129,7 @@ public class CalculateAverage_artsiomkorzun {
         }
     }
 
-    private static class Row {
+    static class Row {
         final byte[] station = new byte[256];
         int length;
         int hash;
@@ -104,7 +141,7 @@ public class CalculateAverage_artsiomkorzun {
         }
     }
 
-    private static class Aggregate implements Comparable<Aggregate> {
+    static class Aggregate implements Comparable<Aggregate> {
         final byte[] station;
         final int hash;
         int min;
@@ -163,7 +200,7 @@ public class CalculateAverage_artsiomkorzun {
         }
     }
 
-    private static class Aggregates {
+    static class Aggregates {
 
         private static final int GROW_FACTOR = 4;
         private static final float LOAD_FACTOR = 0.55f;
@@ -241,6 +278,7 @@ public class CalculateAverage_artsiomkorzun {
             Aggregate[] oldAggregates = aggregates;
             aggregates = new Aggregate[oldAggregates.length * GROW_FACTOR];
             limit = (int) (aggregates.length * LOAD_FACTOR);
+            EngineMetrics.resized("Aggregates", oldAggregates.length, aggregates.length);
 
             for (Aggregate aggregate : oldAggregates) {
                 if (aggregate != null) {
@@ -256,14 +294,18 @@ public class CalculateAverage_artsiomkorzun {
         }
     }
 
-    private static class Aggregator extends Thread {
+    static class Aggregator extends Thread {
 
-        private final AtomicInteger counter;
+        private final Path file;
+        private final long fileSize;
+        private final SegmentScheduler scheduler;
         private final AtomicReference<Aggregates> result;
 
-        public Aggregator(AtomicInteger counter, AtomicReference<Aggregates> result) {
+        public Aggregator(Path file, long fileSize, SegmentScheduler scheduler, AtomicReference<Aggregates> result) {
             super("aggregator");
-            this.counter = counter;
+            this.file = file;
+            this.fileSize = fileSize;
+            this.scheduler = scheduler;
             this.result = result;
         }
 
@@ -272,8 +314,8 @@ public class CalculateAverage_artsiomkorzun {
             Aggregates aggregates = new Aggregates();
             Row row = new Row();
 
-            try (FileChannel channel = FileChannel.open(FILE, StandardOpenOption.READ)) {
-                for (int segment; (segment = counter.getAndIncrement()) < SEGMENT_COUNT;) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
                     aggregate(channel, segment, aggregates, row);
                 }
             }
@@ -290,10 +332,10 @@ public class CalculateAverage_artsiomkorzun {
             }
         }
 
-        private static void aggregate(FileChannel channel, int segment, Aggregates aggregates, Row row) throws Exception {
-            long position = (long) SEGMENT_SIZE * segment;
-            int size = (int) Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, FILE_SIZE - position);
-            int limit = Math.min(SEGMENT_SIZE, size - 1);
+        private void aggregate(FileChannel channel, SegmentScheduler.Segment segment, Aggregates aggregates, Row row) throws Exception {
+            long position = segment.start();
+            int size = (int) Math.min(segment.size() + SEGMENT_OVERLAP, fileSize - position);
+            int limit = Math.min(segment.size(), size - 1);
 
             MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
 
@@ -307,7 +349,7 @@ public class CalculateAverage_artsiomkorzun {
             }
         }
 
-        private static Aggregates merge(Aggregates lefts, Aggregates rights) {
+        static Aggregates merge(Aggregates lefts, Aggregates rights) {
             if (rights.size() < lefts.size()) {
                 Aggregates temp = lefts;
                 lefts = rights;
@@ -324,7 +366,7 @@ public class CalculateAverage_artsiomkorzun {
             }
         }
 
-        private static int parse(ByteBuffer buffer, Row row, int offset) {
+        static int parse(ByteBuffer buffer, Row row, int offset) {
             byte[] station = row.station;
             int length = 0;
             int hash = 0;
@@ -20,13 +20,19 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
-public class CalculateAverage_ebarlas {
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.StationStats;
+
+public class CalculateAverage_ebarlas implements AggregationEngine {
 
     private static final int MAX_KEY_SIZE = 100 * 4; // max 4 bytes per UTF-8 char
     private static final int HASH_FACTOR = 433;
@@ -39,35 +45,60 @@ public class CalculateAverage_ebarlas {
         }
         var path = Paths.get(args[0]);
         var numPartitions = Integer.parseInt(args[1]);
-        var channel = FileChannel.open(path, StandardOpenOption.READ);
-        var partitionSize = channel.size() / numPartitions;
-        var partitions = new Partition[numPartitions];
-        var threads = new Thread[numPartitions];
-        for (int i = 0; i < numPartitions; i++) {
-            var pIdx = i;
-            var pStart = pIdx * partitionSize;
-            var pEnd = pIdx == numPartitions - 1
-                    ? channel.size() // last partition might be slightly larger
-                    : pStart + partitionSize;
-            var pSize = pEnd - pStart;
-            Runnable r = () -> {
-                try {
-                    var buffer = channel.map(FileChannel.MapMode.READ_ONLY, pStart, pSize);
-                    partitions[pIdx] = processBuffer(buffer, pIdx == 0);
-                }
-                catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            };
-            threads[i] = new Thread(r);
-            threads[i].start();
+        printResults(process(path, numPartitions));
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        Stats[] stats;
+        try {
+            stats = process(input, options.parallelism());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        for (var st : stats) {
+            if (st != null) {
+                results.put(new String(st.key, StandardCharsets.UTF_8), new StationStats(st.min, st.max, st.sum, st.count));
+            }
         }
-        for (var thread : threads) {
-            thread.join();
+        return results;
+    }
+
+    private static Stats[] process(Path path, int numPartitions) throws IOException, InterruptedException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var partitionSize = channel.size() / numPartitions;
+            var partitions = new Partition[numPartitions];
+            var threads = new Thread[numPartitions];
+            for (int i = 0; i < numPartitions; i++) {
+                var pIdx = i;
+                var pStart = pIdx * partitionSize;
+                var pEnd = pIdx == numPartitions - 1
+                        ? channel.size() // last partition might be slightly larger
+                        : pStart + partitionSize;
+                var pSize = pEnd - pStart;
+                Runnable r = () -> {
+                    try {
+                        var buffer = channel.map(FileChannel.MapMode.READ_ONLY, pStart, pSize);
+                        partitions[pIdx] = processBuffer(buffer, pIdx == 0);
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+                threads[i] = new Thread(r);
+                threads[i].start();
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+            var partitionList = List.of(partitions);
+            foldFootersAndHeaders(partitionList);
+            return foldStats(partitionList);
         }
-        var partitionList = List.of(partitions);
-        foldFootersAndHeaders(partitionList);
-        printResults(foldStats(partitionList));
     }
 
     private static void printResults(Stats[] stats) { // adheres to Gunnar's reference code
@@ -20,7 +20,12 @@ import jdk.incubator.vector.VectorSpecies;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
@@ -32,10 +37,14 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.StationStats;
+
 /**
  * An attempt at using the "new" Vector API for determining where newline and semicolons are.
  */
-public class CalculateAverage_gabrielreid {
+public class CalculateAverage_gabrielreid implements AggregationEngine {
 
     private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
     private static final int BYTE_SPECIES_LEN = BYTE_SPECIES.length();
@@ -55,75 +64,117 @@ public class CalculateAverage_gabrielreid {
 
     public static void main(String[] args) throws IOException {
         int numCores = Runtime.getRuntime().availableProcessors();
+
+        try (var fis = new FileInputStream("./measurements.txt")) {
+            System.out.println(summarize(fis, numCores, BLOCK_READ_SIZE).toOutputString());
+        }
+    }
+
+    /**
+     * Reads blocks of {@link #BLOCK_READ_SIZE} whatever the segment size: the partial lines at the block boundaries are
+     * parsed in one last block, which smaller blocks would overflow.
+     */
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        try (var in = Files.newInputStream(input)) {
+            return toStationStats(summarize(in, options.parallelism(), BLOCK_READ_SIZE));
+        }
+    }
+
+    /**
+     * Keeps no histograms, neither for files nor for streams, which it reads itself.
+     */
+    @Override
+    public boolean supportsHistograms(boolean stream) {
+        return false;
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(ReadableByteChannel input, EngineOptions options) throws IOException {
+        return toStationStats(summarize(Channels.newInputStream(input), options.parallelism(), BLOCK_READ_SIZE));
+    }
+
+    private static SortedMap<String, StationStats> toStationStats(SummaryTable summaryTable) {
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        for (int i = 0; i < summaryTable.size; i++) {
+            ByteSlice slice = summaryTable.keys[i];
+            if (slice != null) {
+                CitySummary summary = summaryTable.values[i];
+                results.put(slice.valueAsString(), new StationStats(summary.min, summary.max, summary.sum, summary.count));
+            }
+        }
+        return results;
+    }
+
+    private static SummaryTable summarize(InputStream in, int numCores, int blockReadSize) throws IOException {
         int numReadBuffers = numCores + 2;
 
         var blockBuilderQueue = new LinkedBlockingDeque<BlockBuilder>(numReadBuffers);
         for (int i = 0; i < numReadBuffers; i++) {
-            blockBuilderQueue.add(new BlockBuilder(BLOCK_READ_SIZE));
+            blockBuilderQueue.add(new BlockBuilder(blockReadSize));
         }
         try (var fjp = new ForkJoinPool(numCores)) {
 
             CompletableFuture<State> stateFuture = CompletableFuture.completedFuture(new State(new SummaryTable(SUMMARY_TABLE_SIZE), new byte[0]));
 
-            try (var fis = new FileInputStream("./measurements.txt")) {
-                var blockBuilder = Objects.requireNonNull(blockBuilderQueue.poll());
-                boolean skipToNewline = false;
-                int cnt;
-                while ((cnt = fis.read(blockBuilder.readBuffer)) != -1) {
-
-                    var localBlockBuilder = blockBuilder;
-                    var localCnt = cnt;
-                    var localSkipToNewline = skipToNewline;
-                    skipToNewline = true;
-                    stateFuture = stateFuture.thenCombine(
-                            CompletableFuture.supplyAsync(() -> {
-                                var summaryTable = localBlockBuilder.buildSummaryTable(localCnt, localSkipToNewline);
-
-                                int unprocessedRemainderSize = localBlockBuilder.firstLineStart + (localCnt - localBlockBuilder.lastLineEnd);
-                                var unprocessedBytes = new byte[unprocessedRemainderSize];
-                                System.arraycopy(localBlockBuilder.readBuffer, 0, unprocessedBytes, 0, localBlockBuilder.firstLineStart);
-                                System.arraycopy(localBlockBuilder.readBuffer, localBlockBuilder.lastLineEnd, unprocessedBytes, localBlockBuilder.firstLineStart,
-                                        (localCnt - localBlockBuilder.lastLineEnd));
-
-                                localBlockBuilder.reset();
-                                blockBuilderQueue.add(localBlockBuilder);
-                                return new State(summaryTable, unprocessedBytes);
-                            }, fjp), (state, newState) -> {
-                                state.summaryTable.addAll(newState.summaryTable);
-
-                                var newRemainderBytes = new byte[state.remainderBytes.length + newState.remainderBytes.length];
-                                System.arraycopy(state.remainderBytes, 0, newRemainderBytes, 0, state.remainderBytes.length);
-                                System.arraycopy(newState.remainderBytes, 0, newRemainderBytes, state.remainderBytes.length, newState.remainderBytes.length);
-                                return new State(state.summaryTable, newRemainderBytes);
-                            });
-
-                    try {
-                        blockBuilder = blockBuilderQueue.poll(1, TimeUnit.HOURS);
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException(e);
-                    }
-                }
+            var blockBuilder = Objects.requireNonNull(blockBuilderQueue.poll());
+            boolean skipToNewline = false;
+            int cnt;
+            while ((cnt = in.readNBytes(blockBuilder.readBuffer, 0, blockBuilder.readBuffer.length)) > 0) {
+
+                var localBlockBuilder = blockBuilder;
+                var localCnt = cnt;
+                var localSkipToNewline = skipToNewline;
+                skipToNewline = true;
+                stateFuture = stateFuture.thenCombine(
+                        CompletableFuture.supplyAsync(() -> {
+                            var summaryTable = localBlockBuilder.buildSummaryTable(localCnt, localSkipToNewline);
+
+                            int unprocessedRemainderSize = localBlockBuilder.firstLineStart + (localCnt - localBlockBuilder.lastLineEnd);
+                            var unprocessedBytes = new byte[unprocessedRemainderSize];
+                            System.arraycopy(localBlockBuilder.readBuffer, 0, unprocessedBytes, 0, localBlockBuilder.firstLineStart);
+                            System.arraycopy(localBlockBuilder.readBuffer, localBlockBuilder.lastLineEnd, unprocessedBytes, localBlockBuilder.firstLineStart,
+                                    (localCnt - localBlockBuilder.lastLineEnd));
+
+                            localBlockBuilder.reset();
+                            blockBuilderQueue.add(localBlockBuilder);
+                            return new State(summaryTable, unprocessedBytes);
+                        }, fjp), (state, newState) -> {
+                            state.summaryTable.addAll(newState.summaryTable);
+
+                            var newRemainderBytes = new byte[state.remainderBytes.length + newState.remainderBytes.length];
+                            System.arraycopy(state.remainderBytes, 0, newRemainderBytes, 0, state.remainderBytes.length);
+                            System.arraycopy(newState.remainderBytes, 0, newRemainderBytes, state.remainderBytes.length, newState.remainderBytes.length);
+                            return new State(state.summaryTable, newRemainderBytes);
+                        });
 
+                try {
+                    blockBuilder = blockBuilderQueue.poll(1, TimeUnit.HOURS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
             }
 
             stateFuture = stateFuture.thenApply(state -> {
-                BlockBuilder blockBuilder = null;
+                BlockBuilder lastBlockBuilder = null;
                 try {
-                    blockBuilder = blockBuilderQueue.poll(1, TimeUnit.HOURS);
+                    lastBlockBuilder = blockBuilderQueue.poll(1, TimeUnit.HOURS);
                 }
                 catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     throw new RuntimeException(e);
                 }
-                System.arraycopy(state.remainderBytes, 0, blockBuilder.readBuffer, 0, state.remainderBytes.length);
-                state.summaryTable.addAll(blockBuilder.buildSummaryTable(state.remainderBytes.length, false));
+                if (state.remainderBytes.length > lastBlockBuilder.readBuffer.length) {
+                    lastBlockBuilder = new BlockBuilder(state.remainderBytes.length);
+                }
+                System.arraycopy(state.remainderBytes, 0, lastBlockBuilder.readBuffer, 0, state.remainderBytes.length);
+                state.summaryTable.addAll(lastBlockBuilder.buildSummaryTable(state.remainderBytes.length, false));
                 return new State(state.summaryTable, new byte[0]);
             });
 
-            var state = stateFuture.join();
-            System.out.println(state.summaryTable.toOutputString());
+            return stateFuture.join().summaryTable;
         }
     }
 
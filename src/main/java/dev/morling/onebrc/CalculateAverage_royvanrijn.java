@@ -15,24 +15,29 @@
  */
 package dev.morling.onebrc;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineMetrics;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.ResultSnapshot;
+import dev.morling.onebrc.engine.SegmentScheduler;
+import dev.morling.onebrc.engine.StationStats;
+
 /**
  * Changelog:
  *
@@ -55,7 +60,7 @@ import java.util.stream.Stream;
  * `sdk use java 21.0.1-graal`
  *
  */
-public class CalculateAverage_royvanrijn {
+public class CalculateAverage_royvanrijn implements AggregationEngine {
 
     private static final String FILE = "./measurements.txt";
     // private static final String FILE = "./src/test/resources/samples/measurements-10000-unique-keys.txt";
@@ -101,85 +106,118 @@ public class CalculateAverage_royvanrijn {
 
     private void run() throws Exception {
 
-        var results = getFileSegments(new File(FILE)).stream().map(segment -> {
+        var results = process(Path.of(FILE), EngineOptions.defaults());
+
+        System.out.println(results);
 
-            long segmentEnd = segment.end();
-            try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(FILE), StandardOpenOption.READ)) {
-                var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, segment.start(), segmentEnd - segment.start());
+        // System.out.println("Processed: " + results.entrySet().stream().mapToLong(e -> e.getValue().count).sum());
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        process(input, options).forEach((city, m) -> results.put(city, new StationStats(m.min, m.max, m.sum, m.count)));
+        return results;
+    }
+
+    @Override
+    public void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        repositories(input, options).forEach(repository -> repository.writeTo(writer));
+        writer.write(snapshot);
+    }
+
+    private TreeMap<String, Measurement> process(Path file, EngineOptions options) throws IOException {
+        return repositories(file, options).parallelStream()
+                .flatMap(v -> v.get())
+                .collect(Collectors.toMap(e -> e.cityName, MeasurementRepository.Entry::measurement, Measurement::updateWith, TreeMap::new));
+    }
+
+    private List<MeasurementRepository> repositories(Path file, EngineOptions options) throws IOException {
+
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Segments are claimed by the workers one after the other, getting smaller towards the end of the file:
+            SegmentScheduler scheduler = SegmentScheduler.lineAligned(fileChannel, 0, fileChannel.size(), options);
+
+            return IntStream.range(0, scheduler.workers()).parallel().mapToObj(worker -> {
 
                 // Work with any UTF-8 city name, up to 100 in length:
                 var cityNameAsLongArray = new long[16];
                 var delimiterPointerAndHash = new int[2];
+                MeasurementRepository measurements = new MeasurementRepository();
 
-                // Calculate using native ordering (fastest?):
-                bb.order(ByteOrder.nativeOrder());
+                try {
+                    for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
+                        var bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, segment.start(), segment.size());
+                        process(bb, measurements, cityNameAsLongArray, delimiterPointerAndHash);
+                    }
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return measurements;
+            }).toList();
+        }
+    }
 
-                // Record the order it is and calculate accordingly:
-                final boolean bufferIsBigEndian = bb.order().equals(ByteOrder.BIG_ENDIAN);
-                MeasurementRepository measurements = new MeasurementRepository();
+    private void process(ByteBuffer bb, MeasurementRepository measurements, long[] cityNameAsLongArray, int[] delimiterPointerAndHash) {
 
-                int startPointer;
-                int limit = bb.limit();
-                while ((startPointer = bb.position()) < limit) {
+        // Calculate using native ordering (fastest?):
+        bb.order(ByteOrder.nativeOrder());
 
-                    int delimiterPointer, endPointer;
+        // Record the order it is and calculate accordingly:
+        final boolean bufferIsBigEndian = bb.order().equals(ByteOrder.BIG_ENDIAN);
 
-                    // SWAR method to find delimiter *and* record the cityname as long[] *and* calculate a hash:
-                    findNextDelimiterAndCalculateHash(bb, SEPARATOR_PATTERN, startPointer, limit, delimiterPointerAndHash, cityNameAsLongArray, bufferIsBigEndian);
-                    delimiterPointer = delimiterPointerAndHash[0];
+        int startPointer;
+        int limit = bb.limit();
+        while ((startPointer = bb.position()) < limit) {
 
-                    // Simple lookup is faster for '\n' (just three options)
-                    if (delimiterPointer >= limit) {
-                        return measurements;
-                    }
-                    // Extract the measurement value (10x):
-                    final int cityNameLength = delimiterPointer - startPointer;
-
-                    int measuredValue;
-                    int neg = 1;
-                    if (bb.get(++delimiterPointer) == '-') {
-                        neg = -1;
-                        delimiterPointer++;
-                    }
-                    byte dot;
-                    if ((dot = (bb.get(delimiterPointer + 1))) == '.') {
-                        measuredValue = neg * ((bb.get(delimiterPointer)) * 10 + (bb.get(delimiterPointer + 2)) - 528);
-                        endPointer = delimiterPointer + 3;
-                    }
-                    else {
-                        measuredValue = neg * (bb.get(delimiterPointer) * 100 + dot * 10 + bb.get(delimiterPointer + 3) - 5328);
-                        endPointer = delimiterPointer + 4;
-                    }
+            int delimiterPointer, endPointer;
 
-                    // Store everything in a custom hashtable:
-                    measurements.update(cityNameAsLongArray, bb, cityNameLength, delimiterPointerAndHash[1]).updateWith(measuredValue);
+            // SWAR method to find delimiter *and* record the cityname as long[] *and* calculate a hash:
+            findNextDelimiterAndCalculateHash(bb, SEPARATOR_PATTERN, startPointer, limit, delimiterPointerAndHash, cityNameAsLongArray, bufferIsBigEndian);
+            delimiterPointer = delimiterPointerAndHash[0];
 
-                    bb.position(endPointer + 1); // skip to next line.
-                }
-                return measurements;
+            // Simple lookup is faster for '\n' (just three options)
+            if (delimiterPointer >= limit) {
+                return;
             }
-            catch (IOException e) {
-                throw new RuntimeException(e);
+            // Extract the measurement value (10x):
+            final int cityNameLength = delimiterPointer - startPointer;
+
+            int measuredValue;
+            int neg = 1;
+            if (bb.get(++delimiterPointer) == '-') {
+                neg = -1;
+                delimiterPointer++;
+            }
+            byte dot;
+            if ((dot = (bb.get(delimiterPointer + 1))) == '.') {
+                measuredValue = neg * ((bb.get(delimiterPointer)) * 10 + (bb.get(delimiterPointer + 2)) - 528);
+                endPointer = delimiterPointer + 3;
+            }
+            else {
+                measuredValue = neg * (bb.get(delimiterPointer) * 100 + dot * 10 + bb.get(delimiterPointer + 3) - 5328);
+                endPointer = delimiterPointer + 4;
             }
-        }).parallel()
-                .flatMap(v -> v.get())
-                .collect(Collectors.toMap(e -> e.cityName, MeasurementRepository.Entry::measurement, Measurement::updateWith, TreeMap::new));
 
-        System.out.println(results);
+            // Store everything in a custom hashtable:
+            measurements.update(cityNameAsLongArray, bb, cityNameLength, delimiterPointerAndHash[1]).updateWith(measuredValue);
 
-        // System.out.println("Processed: " + results.entrySet().stream().mapToLong(e -> e.getValue().count).sum());
+            bb.position(endPointer + 1); // skip to next line.
+        }
     }
 
     /**
      * -------- This section contains SWAR code (SIMD Within A Register) which processes a bytebuffer as longs to find values:
      */
-    private static final long SEPARATOR_PATTERN = compilePattern((byte) ';');
+    static final long SEPARATOR_PATTERN = compilePattern((byte) ';');
 
     /**
      * Already looping the longs here, lets shoehorn in making a hash
      */
-    private void findNextDelimiterAndCalculateHash(final ByteBuffer bb, final long pattern, final int start, final int limit, final int[] output,
-                                                   final long[] asLong, final boolean bufferBigEndian) {
+    void findNextDelimiterAndCalculateHash(final ByteBuffer bb, final long pattern, final int start, final int limit, final int[] output,
+                                           final long[] asLong, final boolean bufferBigEndian) {
         int hash = 1;
         int i;
         int lCnt = 0;
@@ -229,41 +267,6 @@ public class CalculateAverage_royvanrijn {
                 ((long) value << 24) | ((long) value << 16) | ((long) value << 8) | (long) value;
     }
 
-    record FileSegment(long start, long end) {
-    }
-
-    private static List<FileSegment> getFileSegments(final File file) throws IOException {
-        final int numberOfSegments = Runtime.getRuntime().availableProcessors();
-        final long fileSize = file.length();
-        final long segmentSize = fileSize / numberOfSegments;
-        final List<FileSegment> segments = new ArrayList<>();
-        if (segmentSize < 1000) {
-            segments.add(new FileSegment(0, fileSize));
-            return segments;
-        }
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            long segStart = 0;
-            long segEnd = segmentSize;
-            while (segStart < fileSize) {
-                segEnd = findSegment(randomAccessFile, segEnd, fileSize);
-                segments.add(new FileSegment(segStart, segEnd));
-                segStart = segEnd; // Just re-use the end and go from there.
-                segEnd = Math.min(fileSize, segEnd + segmentSize);
-            }
-        }
-        return segments;
-    }
-
-    private static long findSegment(RandomAccessFile raf, long location, final long fileSize) throws IOException {
-        raf.seek(location);
-        while (location < fileSize) {
-            location++;
-            if (raf.read() == '\n')
-                return location;
-        }
-        return location;
-    }
-
     // branchless max (unprecise for large numbers, but good enough)
     static int max(final int a, final int b) {
         final int diff = a - b;
@@ -344,6 +347,7 @@ public class CalculateAverage_royvanrijn {
             table = new Entry[tableSize <<= 2]; // x2
             tableMask = (tableSize - 1);
             tableLimit = (int) (tableSize * LOAD_FACTOR);
+            EngineMetrics.resized("MeasurementRepository", oldEntries.length, tableSize);
 
             for (Entry entry : oldEntries) {
                 if (entry != null) {
@@ -359,6 +363,14 @@ public class CalculateAverage_royvanrijn {
         public Stream<Entry> get() {
             return Arrays.stream(table).filter(Objects::nonNull);
         }
+
+        public void writeTo(ResultSnapshot.Writer writer) {
+            get().forEach(entry -> {
+                byte[] name = entry.cityName.getBytes(StandardCharsets.UTF_8);
+                Measurement m = entry.measurement;
+                writer.add(name, 0, name.length, m.min, m.max, m.sum, m.count);
+            });
+        }
     }
 
     /**
@@ -25,11 +25,16 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
-public class CalculateAverage_spullara {
+import dev.morling.onebrc.engine.AggregationEngine;
+import dev.morling.onebrc.engine.EngineOptions;
+import dev.morling.onebrc.engine.StationStats;
+
+public class CalculateAverage_spullara implements AggregationEngine {
     private static final String FILE = "./measurements.txt";
 
     /*
@@ -44,9 +49,28 @@ public class CalculateAverage_spullara {
     public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
         long start = System.currentTimeMillis();
         var filename = args.length == 0 ? FILE : args[0];
+
+        var resultsMap = process(filename, Runtime.getRuntime().availableProcessors());
+
+        System.out.println(resultsMap);
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = new TreeMap<>();
+        process(input.toString(), options.parallelism()).forEach((station, result) -> results.put(station,
+                new StationStats(tenths(result.min), tenths(result.max), Math.round(result.sum * 10.0), result.count)));
+        return results;
+    }
+
+    private static int tenths(double value) {
+        return (int) Math.round(value * 10.0);
+    }
+
+    private static TreeMap<String, Result> process(String filename, int numberOfSegments) throws IOException {
         var file = new File(filename);
 
-        var resultsMap = getFileSegments(file).stream().map(segment -> {
+        return getFileSegments(file, numberOfSegments).stream().map(segment -> {
             var resultMap = new ByteArrayToResultMap();
             long segmentEnd = segment.end();
             try (var fileChannel = (FileChannel) Files.newByteChannel(Path.of(filename), StandardOpenOption.READ)) {
@@ -93,12 +117,9 @@ public class CalculateAverage_spullara {
             }
         }).parallel().flatMap(partition -> partition.getAll().stream())
                 .collect(Collectors.toMap(e -> new String(e.key()), Entry::value, CalculateAverage_spullara::merge, TreeMap::new));
-
-        System.out.println(resultsMap);
     }
 
-    private static List<FileSegment> getFileSegments(File file) throws IOException {
-        int numberOfSegments = Runtime.getRuntime().availableProcessors();
+    private static List<FileSegment> getFileSegments(File file, int numberOfSegments) throws IOException {
         long fileSize = file.length();
         long segmentSize = fileSize / numberOfSegments;
         List<FileSegment> segments = new ArrayList<>(numberOfSegments);
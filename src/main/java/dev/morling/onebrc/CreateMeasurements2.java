@@ -19,9 +19,16 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.rschwietzke.CheaperCharBuffer;
 import org.rschwietzke.FastRandom;
@@ -33,6 +40,7 @@ import org.rschwietzke.FastRandom;
 public class CreateMeasurements2 {
 
     private static final String FILE = "./measurements2.txt";
+    private static final int ROWS_PER_CHUNK = 256 * 1024;
 
     static class WeatherStation {
         final static char[] NUMBERS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
@@ -41,6 +49,7 @@ public class CreateMeasurements2 {
         final int meanTemperature;
 
         final char[] firstPart;
+        final byte[] firstPartBytes;
         final FastRandom r = new FastRandom(ThreadLocalRandom.current().nextLong());
 
         WeatherStation(String id, double meanTemperature) {
@@ -48,6 +57,7 @@ public class CreateMeasurements2 {
             this.meanTemperature = (int) meanTemperature;
             // make it directly copyable
             this.firstPart = (id + ";").toCharArray();
+            this.firstPartBytes = (id + ";").getBytes(StandardCharsets.UTF_8);
         }
 
         /**
@@ -70,13 +80,48 @@ public class CreateMeasurements2 {
                     .append(String.valueOf(m)).append('.').append(d)
                     .append('\n');
         }
+
+        /**
+         * Same as {@link #measurement(CheaperCharBuffer)}, but writes UTF-8 bytes
+         * and takes the random from the caller, so that the output only depends
+         * on the caller's seed.
+         *
+         * @param r the random of the calling thread
+         * @param buffer the buffer to write to
+         * @param offset where to write
+         * @return the offset after the written line
+         */
+        int measurement(final FastRandom r, final byte[] buffer, int offset) {
+            int m = meanTemperature + (r.nextInt(21) - 10);
+            byte d = (byte) NUMBERS[r.nextInt(10)];
+
+            System.arraycopy(firstPartBytes, 0, buffer, offset, firstPartBytes.length);
+            offset += firstPartBytes.length;
+            if (m < 0) {
+                buffer[offset++] = '-';
+                m = -m;
+            }
+            if (m >= 10) {
+                buffer[offset++] = (byte) NUMBERS[m / 10];
+            }
+            buffer[offset++] = (byte) NUMBERS[m % 10];
+            buffer[offset++] = '.';
+            buffer[offset++] = d;
+            buffer[offset++] = '\n';
+            return offset;
+        }
+
+        int maxLineLength() {
+            // name, ';', "-99.9" and '\n'
+            return firstPartBytes.length + 6;
+        }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Usage: create_measurements2.sh <number of records to create> [<seed>]");
             System.exit(1);
         }
 
@@ -529,6 +574,14 @@ public class CreateMeasurements2 {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
+        if (args.length == 2) {
+            long seed = Long.parseLong(args[1]);
+            int threads = Runtime.getRuntime().availableProcessors();
+            produceParallel(Path.of(FILE), stations, size, seed, threads);
+            System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
+            return;
+        }
+
         File file = new File(FILE);
 
         // break the loop and unroll it manually
@@ -620,4 +673,111 @@ public class CreateMeasurements2 {
             bw.write(sb.data_, 0, sb.length_);
         }
     }
+
+    /**
+     * Writes the measurements with several threads. The rows are cut into
+     * chunks of {@link #ROWS_PER_CHUNK}, each generated with its own random
+     * seeded from the given seed and the chunk index, so the file only depends
+     * on the seed, not on the number of threads. Each thread renders the chunks
+     * it claims into its own byte buffer and writes them with positional writes
+     * into their region of the file, which starts where the previous chunk
+     * ends.
+     */
+    static void produceParallel(Path file, List<WeatherStation> stations, int count, long seed, int threads) throws Exception {
+        final int chunks = (count + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK;
+        final int maxLineLength = stations.stream().mapToInt(WeatherStation::maxLineLength).max().orElse(0);
+        final ChunkOffsets offsets = new ChunkOffsets(chunks);
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Thread[] workers = new Thread[Math.max(1, Math.min(threads, chunks))];
+            for (int t = 0; t < workers.length; t++) {
+                workers[t] = new Thread(() -> {
+                    final byte[] buffer = new byte[ROWS_PER_CHUNK * maxLineLength];
+                    final int stationCount = stations.size();
+                    try {
+                        for (int chunk; (chunk = nextChunk.getAndIncrement()) < chunks;) {
+                            final FastRandom r = new FastRandom(chunkSeed(seed, chunk));
+                            final int rows = Math.min(ROWS_PER_CHUNK, count - chunk * ROWS_PER_CHUNK);
+
+                            int length = 0;
+                            for (int i = 0; i < rows; i++) {
+                                length = stations.get(r.nextInt(stationCount)).measurement(r, buffer, length);
+                            }
+
+                            long position = offsets.await(chunk);
+                            offsets.complete(chunk, length);
+
+                            ByteBuffer out = ByteBuffer.wrap(buffer, 0, length);
+                            while (out.hasRemaining()) {
+                                channel.write(out, position + out.position());
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        offsets.fail();
+                    }
+                }, "writer-" + t);
+                workers[t].start();
+            }
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Writing measurements failed", failure.get());
+        }
+    }
+
+    /**
+     * Seed of the random of the given chunk; never 0, which {@link FastRandom}
+     * would never leave again.
+     */
+    private static long chunkSeed(long seed, int chunk) {
+        // SplitMix64 finalizer, so that neighbouring chunks get unrelated seeds
+        long z = seed + (chunk + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return z != 0 ? z : 1;
+    }
+
+    /**
+     * File offsets of the chunks. The offset of a chunk is known as soon as the
+     * previous chunk has been generated, so a writer only waits for the chunk
+     * claimed right before its own.
+     */
+    static final class ChunkOffsets {
+        private final long[] offsets;
+        private boolean failed;
+
+        ChunkOffsets(int chunks) {
+            offsets = new long[chunks + 1];
+            Arrays.fill(offsets, 1, offsets.length, -1);
+        }
+
+        synchronized long await(int chunk) throws InterruptedException {
+            while (offsets[chunk] < 0) {
+                if (failed) {
+                    throw new IllegalStateException("Another writer failed");
+                }
+                wait();
+            }
+            return offsets[chunk];
+        }
+
+        synchronized void complete(int chunk, long length) {
+            offsets[chunk + 1] = offsets[chunk] + length;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+    }
 }
@@ -0,0 +1,337 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Creates a reproducible measurements file with synthetic station names. Unlike {@link CreateMeasurements}, the number of
+ * stations, the length of their names and how often each of them occurs can be chosen, so that the worst cases of the
+ * station tables, e.g. 10,000 long names, or a few hot stations among many cold ones, can be generated. The same
+ * arguments always produce the same file.
+ * <p>
+ * Usage: {@code create_measurements3.sh <number of records> [--seed <seed>] [--stations <count>] [--name-length <lengths>]
+ * [--skew <exponent>] [--collide <scheme>]}, where
+ * <ul>
+ * <li>{@code --stations} is the number of unique stations, 1 to 10,000 (default 413, like the default files),</li>
+ * <li>{@code --name-length} is a comma separated list of byte length ranges {@code <min>-<max>}, each optionally with a
+ * weight {@code :<weight>}, e.g. {@code 3-8:9,90-100:1} for 90% short and 10% long names (default {@code 3-24}),</li>
+ * <li>{@code --skew} is the exponent of the Zipf distribution of the stations, i.e. the station of rank {@code k} occurs
+ * with a probability proportional to {@code 1 / k^skew}; 0 picks the stations uniformly (default 0),</li>
+ * <li>{@code --collide} crafts names which all have the same hash under one of the hashes of the engines, instead of
+ * random names of the given lengths; {@code polynomial-31} for {@code 31 * hash + b} (e.g. spullara, palmr, armandino and
+ * the {@code mapped} engine, whose names are at least 18 bytes long for this, as it hashes names of up to 16 bytes by
+ * their words), {@code polynomial-71} for artsiomkorzun, and {@code words} for royvanrijn.</li>
+ * </ul>
+ */
+public class CreateMeasurements3 {
+
+    private static final Path MEASUREMENT_FILE = Path.of("./measurements3.txt");
+
+    private static final int MAX_STATIONS = 10_000;
+    private static final int MAX_NAME_LENGTH = 100;
+
+    /**
+     * Fewest blocks of a colliding polynomial name: 18 bytes, more than the 16 bytes the {@code mapped} engine hashes by
+     * their words rather than polynomially.
+     */
+    private static final int MIN_COLLIDING_BLOCKS = 9;
+
+    private static final byte[] LETTERS = "abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Two byte characters mixed into the names, so that names are not plain ASCII.
+     */
+    private static final byte[][] ACCENTED = { "é".getBytes(StandardCharsets.UTF_8), "ü".getBytes(StandardCharsets.UTF_8),
+            "ø".getBytes(StandardCharsets.UTF_8), "ł".getBytes(StandardCharsets.UTF_8), "ç".getBytes(StandardCharsets.UTF_8) };
+
+    private record WeatherStation(byte[] firstPart, double meanTemperature) {
+    }
+
+    /**
+     * A range of name lengths in bytes, chosen with a probability proportional to its weight.
+     */
+    private record LengthRange(int min, int max, double weight) {
+
+        static LengthRange parse(String range) {
+            String[] parts = range.split(":", 2);
+            String[] bounds = parts[0].split("-", 2);
+            int min = Integer.parseInt(bounds[0].trim());
+            int max = bounds.length == 2 ? Integer.parseInt(bounds[1].trim()) : min;
+            double weight = parts.length == 2 ? Double.parseDouble(parts[1].trim()) : 1;
+            if (min < 1 || max > MAX_NAME_LENGTH || min > max || weight <= 0) {
+                throw new IllegalArgumentException("Invalid name length range: " + range);
+            }
+            return new LengthRange(min, max, weight);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long start = System.currentTimeMillis();
+
+        int size = 0;
+        long seed = 0;
+        int stationCount = 413;
+        String nameLengths = "3-24";
+        double skew = 0;
+        String collide = null;
+        try {
+            if (args.length % 2 == 0) {
+                throw new IllegalArgumentException("Missing arguments");
+            }
+            size = Integer.parseInt(args[0]);
+            for (int i = 1; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--stations" -> stationCount = Integer.parseInt(value);
+                    case "--name-length" -> nameLengths = value;
+                    case "--skew" -> skew = Double.parseDouble(value);
+                    case "--collide" -> collide = value;
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (size < 0 || stationCount < 1 || stationCount > MAX_STATIONS || skew < 0) {
+                throw new IllegalArgumentException("Invalid arguments");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                    "Usage: create_measurements3.sh <number of records to create> [--seed <seed>] [--stations <count>] [--name-length <min>-<max>[:<weight>],...] [--skew <exponent>] [--collide <polynomial-<m>|words>]");
+            System.exit(1);
+        }
+
+        List<LengthRange> ranges = Arrays.stream(nameLengths.split(",")).map(LengthRange::parse).toList();
+        SplittableRandom random = new SplittableRandom(seed);
+        List<WeatherStation> stations = collide != null ? collidingStations(random.split(), stationCount, collide) : stations(random.split(), stationCount, ranges);
+        double[] distribution = cumulativeZipf(stationCount, skew);
+
+        byte[] line = new byte[MAX_NAME_LENGTH + 8];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(MEASUREMENT_FILE), 1 << 20)) {
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && i % 50_000_000 == 0) {
+                    System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
+                }
+                WeatherStation station = stations.get(pick(distribution, random.nextDouble()));
+                int length = measurement(station, random, line);
+                out.write(line, 0, length);
+            }
+        }
+        System.out.printf("Created file with %,d measurements of %,d stations in %s ms%n", size, stationCount, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Creates the given number of stations with unique names, with lengths drawn from the given ranges.
+     */
+    private static List<WeatherStation> stations(SplittableRandom random, int count, List<LengthRange> ranges) {
+        double totalWeight = ranges.stream().mapToDouble(LengthRange::weight).sum();
+        Set<String> names = new HashSet<>();
+        List<WeatherStation> stations = new ArrayList<>(count);
+
+        int attempts = 0;
+        while (stations.size() < count) {
+            if (++attempts > count * 100) {
+                throw new IllegalArgumentException("Cannot create " + count + " unique names with the lengths " + ranges);
+            }
+
+            double r = random.nextDouble() * totalWeight;
+            LengthRange range = ranges.getLast();
+            for (LengthRange candidate : ranges) {
+                if ((r -= candidate.weight()) < 0) {
+                    range = candidate;
+                    break;
+                }
+            }
+
+            byte[] name = name(random, random.nextInt(range.min(), range.max() + 1));
+            if (names.add(new String(name, StandardCharsets.UTF_8))) {
+                stations.add(station(random, name));
+            }
+        }
+        return stations;
+    }
+
+    /**
+     * Creates the given number of stations whose names all have the same hash under the given scheme:
+     * <ul>
+     * <li>{@code polynomial-<m>}: {@code m * hash + b} over the bytes, e.g. {@code polynomial-31} for the hash of
+     * {@code String} used by many of the tables, or {@code polynomial-71}. Names are concatenations of two blocks of two
+     * bytes {@code (a, b)} and {@code (a + 1, b - m)}, which have the same hash, so all names of the same number of
+     * blocks collide. Names have at least {@link #MIN_COLLIDING_BLOCKS} blocks.</li>
+     * <li>{@code words}: {@code 31 * hash + (int) (word ^ (word >>> 32))} over little-endian words of eight bytes. Names
+     * are four letters followed by the same letters with the case swapped, so the two halves of the word always differ by
+     * {@code 0x20202020}.</li>
+     * </ul>
+     */
+    private static List<WeatherStation> collidingStations(SplittableRandom random, int count, String scheme) {
+        List<byte[]> names = new ArrayList<>(count);
+        if (scheme.equals("words")) {
+            Set<String> unique = new HashSet<>();
+            while (names.size() < count) {
+                byte[] name = new byte[8];
+                for (int i = 0; i < 4; i++) {
+                    name[i] = LETTERS[random.nextInt(LETTERS.length)];
+                    name[i + 4] = (byte) (name[i] ^ 0x20);
+                }
+                if (unique.add(new String(name, StandardCharsets.US_ASCII))) {
+                    names.add(name);
+                }
+            }
+        }
+        else if (scheme.startsWith("polynomial-")) {
+            byte[][] blocks = collidingBlocks(Integer.parseInt(scheme.substring("polynomial-".length())));
+            int blockCount = Math.max(MIN_COLLIDING_BLOCKS, 32 - Integer.numberOfLeadingZeros(count - 1));
+            if (blockCount * 2 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Too many stations for " + scheme);
+            }
+
+            // distinct combinations of the two blocks, in random order
+            int[] combinations = new int[1 << blockCount];
+            for (int i = 0; i < combinations.length; i++) {
+                int j = random.nextInt(i + 1);
+                combinations[i] = combinations[j];
+                combinations[j] = i;
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[blockCount * 2];
+                for (int block = 0; block < blockCount; block++) {
+                    System.arraycopy(blocks[(combinations[i] >>> block) & 1], 0, name, block * 2, 2);
+                }
+                names.add(name);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unknown collision scheme: " + scheme);
+        }
+
+        List<WeatherStation> stations = new ArrayList<>(count);
+        for (byte[] name : names) {
+            stations.add(station(random, name));
+        }
+        return stations;
+    }
+
+    /**
+     * Returns two blocks of two printable ASCII bytes with the same polynomial hash for the given multiplier, preferring
+     * letters.
+     */
+    private static byte[][] collidingBlocks(int multiplier) {
+        for (boolean lettersOnly : new boolean[]{ true, false }) {
+            for (int a = 'A'; a < 'Z'; a++) {
+                for (int b = '~'; b - multiplier >= '!'; b--) {
+                    int c = b - multiplier;
+                    if (isNameByte(b, lettersOnly) && isNameByte(c, lettersOnly)) {
+                        return new byte[][]{ { (byte) a, (byte) b }, { (byte) (a + 1), (byte) c } };
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("No colliding blocks for the multiplier " + multiplier);
+    }
+
+    private static boolean isNameByte(int b, boolean lettersOnly) {
+        if (lettersOnly) {
+            return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+        }
+        return b >= '!' && b <= '~' && b != ';';
+    }
+
+    private static WeatherStation station(SplittableRandom random, byte[] name) {
+        byte[] firstPart = Arrays.copyOf(name, name.length + 1);
+        firstPart[name.length] = ';';
+        return new WeatherStation(firstPart, Math.round(random.nextDouble(-20, 35) * 10.0) / 10.0);
+    }
+
+    /**
+     * Returns a name of exactly the given number of UTF-8 bytes, starting with an upper case letter.
+     */
+    private static byte[] name(SplittableRandom random, int length) {
+        byte[] name = new byte[length];
+        name[0] = (byte) (LETTERS[random.nextInt(LETTERS.length)] - 'a' + 'A');
+        int i = 1;
+        while (i < length) {
+            int remaining = length - i;
+            if (remaining >= 2 && random.nextInt(10) == 0) {
+                byte[] accented = ACCENTED[random.nextInt(ACCENTED.length)];
+                System.arraycopy(accented, 0, name, i, accented.length);
+                i += accented.length;
+            }
+            else if (remaining >= 2 && i > 1 && name[i - 1] != ' ' && random.nextInt(8) == 0) {
+                name[i++] = ' ';
+            }
+            else {
+                name[i++] = LETTERS[random.nextInt(LETTERS.length)];
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns the cumulative probabilities of the ranks of a Zipf distribution with the given exponent.
+     */
+    private static double[] cumulativeZipf(int count, double exponent) {
+        double[] cumulative = new double[count];
+        double sum = 0;
+        for (int k = 0; k < count; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < count; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double r) {
+        int index = Arrays.binarySearch(cumulative, r);
+        return Math.min(index >= 0 ? index + 1 : -index - 1, cumulative.length - 1);
+    }
+
+    /**
+     * Writes a line with a measurement of the given station to the buffer, returning its length.
+     */
+    private static int measurement(WeatherStation station, SplittableRandom random, byte[] line) {
+        byte[] firstPart = station.firstPart();
+        System.arraycopy(firstPart, 0, line, 0, firstPart.length);
+        int offset = firstPart.length;
+
+        double m = random.nextGaussian(station.meanTemperature(), 10);
+        int tenths = (int) Math.max(-999, Math.min(999, Math.round(m * 10.0)));
+        if (tenths < 0) {
+            line[offset++] = '-';
+            tenths = -tenths;
+        }
+        if (tenths >= 100) {
+            line[offset++] = (byte) ('0' + tenths / 100);
+        }
+        line[offset++] = (byte) ('0' + tenths / 10 % 10);
+        line[offset++] = '.';
+        line[offset++] = (byte) ('0' + tenths % 10);
+        line[offset++] = '\n';
+        return offset;
+    }
+}
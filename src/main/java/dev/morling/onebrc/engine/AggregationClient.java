@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+
+/**
+ * Minimal client of the {@link AggregationService}, to push measurements and query the statistics from scripts or
+ * while trying out the service locally.
+ * <p>
+ * Usage: {@code AggregationClient <service url> stations | station <name> | push <file>...}
+ */
+public class AggregationClient {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final URI service;
+
+    /**
+     * @param service the base URL of the service, e.g. {@code http://localhost:8080/}
+     */
+    public AggregationClient(URI service) {
+        this.service = service;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: AggregationClient <service url> stations | station <name> | push <file>...");
+            System.exit(1);
+        }
+
+        AggregationClient client = new AggregationClient(URI.create(args[0]));
+        switch (args[1]) {
+            case "stations" -> System.out.print(client.stations());
+            case "station" -> {
+                String stats = client.station(args[2]);
+                System.out.println(stats != null ? stats : "Unknown station " + args[2]);
+            }
+            case "push" -> {
+                for (int i = 2; i < args.length; i++) {
+                    client.push(Path.of(args[i]));
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown command " + args[1]);
+        }
+    }
+
+    /**
+     * Returns all stations, one {@code name=min/mean/max} line each.
+     */
+    public String stations() throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(resolve("stations")).build()).body();
+    }
+
+    /**
+     * Returns {@code min/mean/max} of the given station, or {@code null} if the service doesn't know it.
+     */
+    public String station(String name) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder(resolve("stations/" + name)).build());
+        return response.statusCode() == 404 ? null : response.body().strip();
+    }
+
+    /**
+     * Sends the measurements of the file to the service.
+     */
+    public void push(Path file) throws IOException, InterruptedException {
+        send(HttpRequest.newBuilder(resolve("measurements")).POST(HttpRequest.BodyPublishers.ofFile(file)).build());
+    }
+
+    /**
+     * Sends the given measurement lines to the service.
+     */
+    public void push(String lines) throws IOException, InterruptedException {
+        send(HttpRequest.newBuilder(resolve("measurements")).POST(HttpRequest.BodyPublishers.ofString(lines)).build());
+    }
+
+    private URI resolve(String path) {
+        try {
+            // quotes spaces and non-ASCII characters of station names
+            return service.resolve(new URI(null, null, path, null));
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid path " + path, e);
+        }
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200 && response.statusCode() != 404) {
+            throw new IOException("Request " + request.uri() + " failed with status " + response.statusCode() + ": " + response.body());
+        }
+        return response;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Computes min/mean/max per station for a measurements file.
+ * <p>
+ * Implementations are discovered through {@link java.util.ServiceLoader} (see {@link Engines}), so they need a public no-arg
+ * constructor and must be listed in {@code META-INF/services/dev.morling.onebrc.engine.AggregationEngine}. An engine instance
+ * may be used for several runs, but not concurrently unless it says otherwise.
+ */
+public interface AggregationEngine {
+
+    String FORK_CLASS_PREFIX = "CalculateAverage_";
+
+    /**
+     * The name used to select this engine, by default the fork suffix of the class name, e.g. {@code royvanrijn} for
+     * {@code CalculateAverage_royvanrijn}.
+     */
+    default String name() {
+        String name = getClass().getSimpleName();
+        return name.startsWith(FORK_CLASS_PREFIX) ? name.substring(FORK_CLASS_PREFIX.length()) : name;
+    }
+
+    /**
+     * Whether the engine keeps a {@link TemperatureHistogram} per station when {@link EngineOptions#histograms()} is set,
+     * so that percentiles can be reported. By default only stream input supports it, through the
+     * {@link StreamingAggregator}; engines which keep histograms for files too, or read streams themselves, should
+     * override this.
+     *
+     * @param stream whether the input is read through {@link #aggregate(ReadableByteChannel, EngineOptions)}
+     */
+    default boolean supportsHistograms(boolean stream) {
+        return stream;
+    }
+
+    /**
+     * Aggregates all measurements of the given file.
+     *
+     * @return the statistics per station, sorted by station name, preferably in {@link StationOrder}
+     */
+    SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException;
+
+    /**
+     * Aggregates the measurements of all given files into one result. By default the files are aggregated one after the
+     * other; engines which can spread the work for several files over one set of worker threads should override this.
+     */
+    default SortedMap<String, StationStats> aggregate(List<Path> inputs, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = StationOrder.newSortedMap();
+        for (Path input : inputs) {
+            aggregate(input, options).forEach((station, stats) -> results.merge(station, stats, StationStats::merge));
+        }
+        return results;
+    }
+
+    /**
+     * Aggregates each of the given files separately, returning the results in the order of the files. By default the
+     * files are aggregated one after the other.
+     */
+    default Map<Path, SortedMap<String, StationStats>> aggregateEach(List<Path> inputs, EngineOptions options) throws IOException {
+        Map<Path, SortedMap<String, StationStats>> results = new LinkedHashMap<>();
+        for (Path input : inputs) {
+            results.put(input, aggregate(input, options));
+        }
+        return results;
+    }
+
+    /**
+     * Aggregates all measurements read from the given channel up to its end, e.g. from stdin or a socket. By default this
+     * uses the {@link StreamingAggregator}; engines which read their input as a stream anyway should override it.
+     */
+    default SortedMap<String, StationStats> aggregate(ReadableByteChannel input, EngineOptions options) throws IOException {
+        return new StreamingAggregator(options).aggregate(input);
+    }
+
+    /**
+     * Aggregates all measurements of the given file and writes them as a {@link ResultSnapshot}. Engines which keep the
+     * station names as bytes should override this and feed their tables into a {@link ResultSnapshot.Writer} directly,
+     * skipping the creation of strings and the sorted map.
+     */
+    default void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        ResultSnapshot.write(aggregate(input, options), snapshot);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the statistics of all measurements it has been given in one resident {@link StationTable}, and answers queries
+ * from it, so that a question like "what is the max of Hamburg" doesn't need a new JVM and a scan of the whole file.
+ * Measurements come in three ways:
+ * <ul>
+ * <li>files given to {@link #follow(Path)} are aggregated once with the {@link MappedEngine}, and then polled for appended
+ * lines, like {@code tail -f}; an incomplete last line is left for the next poll</li>
+ * <li>lines posted to {@code POST /measurements}</li>
+ * <li>lines written to a plain socket connection to the ingest port, e.g. with {@code nc}</li>
+ * </ul>
+ * Each posted body and each socket connection is a request, which is validated completely before any of its lines is
+ * aggregated: a line must have a name of 1 to 100 bytes, a ';' and a value like {@code -12.3}. A request with an invalid
+ * line, or of more than {@link #MAX_REQUEST_SIZE} bytes, is rejected as a whole and doesn't change the statistics.
+ * Queries are served over HTTP: {@code GET /stations} returns all stations, one {@code name=min/mean/max} line each, and
+ * {@code GET /stations/<name>} returns {@code min/mean/max} of one station, or 404 if it is unknown. If the service has a
+ * {@link WindowedAggregator}, all lines appended or pushed while it runs are also added to the window, which is queried
+ * the same way under {@code /window}.
+ * <p>
+ * All access to the table is serialized. New lines are aggregated in blocks of {@link #INGEST_BLOCK_SIZE} bytes, holding
+ * the lock for one block at a time, so a query for one station waits for at most one block instead of a whole upload.
+ * <p>
+ * Neither port requires authentication, so both are bound to the loopback address unless another address, e.g.
+ * {@code 0.0.0.0} for all interfaces, is given with {@code --bind}.
+ * <p>
+ * Usage: {@code AggregationService [--bind <address>] [--port <port>] [--ingest-port <port>] [--hash-seed <seed|random>]
+ * [--window <duration> [--window-panes <count>]] [<file to follow>...]}, with durations like {@code 1h} or {@code 30s}
+ */
+public class AggregationService implements Closeable {
+
+    static final int INGEST_BLOCK_SIZE = 64 * 1024;
+    static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final EngineOptions options;
+    private final StationTable table;
+    private final WindowedAggregator window;
+    private final List<Thread> followers = new CopyOnWriteArrayList<>();
+    private final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile boolean closed;
+    private HttpServer server;
+    private ServerSocketChannel ingestChannel;
+
+    public AggregationService(EngineOptions options) {
+        this(options, null);
+    }
+
+    /**
+     * @param window the window to add new lines to, or {@code null} to keep all-time statistics only
+     */
+    public AggregationService(EngineOptions options, WindowedAggregator window) {
+        this.options = options;
+        this.table = new StationTable(options.histograms(), options.catalogue());
+        this.window = window;
+    }
+
+    public static void main(String[] args) throws IOException {
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        int port = 8080;
+        int ingestPort = -1;
+        EngineOptions options = EngineOptions.defaults();
+        Duration window = null;
+        int windowPanes = 60;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--bind" -> bind = InetAddress.getByName(args[++i]);
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--ingest-port" -> ingestPort = Integer.parseInt(args[++i]);
+                    case "--hash-seed" -> options = options.withStationHash(StationHash.of(args[++i]));
+                    case "--window" -> window = Duration.parse("PT" + args[++i]);
+                    case "--window-panes" -> windowPanes = Integer.parseInt(args[++i]);
+                    default -> files.add(Path.of(args[i]));
+                }
+            }
+        }
+        catch (RuntimeException | IOException e) {
+            System.err.println("Usage: AggregationService [--bind <address>] [--port <port>] [--ingest-port <port>] [--hash-seed <seed|random>] [--window <duration> "
+                    + "[--window-panes <count>]] [<file to follow>...]");
+            System.exit(1);
+        }
+
+        AggregationService service = new AggregationService(options, window != null ? WindowedAggregator.ofDuration(options, window, windowPanes) : null);
+        for (Path file : files) {
+            service.follow(file);
+        }
+        InetSocketAddress http = service.startHttp(new InetSocketAddress(bind, port));
+        System.out.println("Serving queries on http://" + host(http) + ":" + http.getPort() + "/");
+        if (ingestPort >= 0) {
+            InetSocketAddress ingest = service.startIngest(new InetSocketAddress(bind, ingestPort));
+            System.out.println("Ingesting lines on " + host(ingest) + ":" + ingest.getPort());
+        }
+    }
+
+    /**
+     * Returns the host under which the bound address can be reached, this host's name for the wildcard address.
+     */
+    private static String host(InetSocketAddress address) throws IOException {
+        if (address.getAddress().isAnyLocalAddress()) {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        String host = address.getHostString();
+        return host.contains(":") ? "[" + host + "]" : host;
+    }
+
+    /**
+     * Starts serving queries and posted measurements, returning the bound address.
+     */
+    public synchronized InetSocketAddress startHttp(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/stations", exchange -> handleQuery(exchange, this::stations, this::station));
+        if (window != null) {
+            server.createContext("/window", exchange -> handleQuery(exchange, this::window, station -> window().get(station)));
+        }
+        server.createContext("/measurements", this::handleMeasurements);
+        server.setExecutor(handlers);
+        server.start();
+        return server.getAddress();
+    }
+
+    /**
+     * Starts accepting plain socket connections, aggregating the lines written to each of them up to its end, and returns
+     * the bound address.
+     */
+    public synchronized InetSocketAddress startIngest(InetSocketAddress address) throws IOException {
+        ingestChannel = ServerSocketChannel.open().bind(address);
+        ServerSocketChannel channel = ingestChannel;
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    SocketChannel connection = channel.accept();
+                    handlers.execute(() -> {
+                        try (connection) {
+                            try {
+                                ingestRequest(connection);
+                            }
+                            catch (IllegalArgumentException e) {
+                                System.err.println("Rejected measurements from " + connection + ": " + e.getMessage());
+                                connection.write(ByteBuffer.wrap(("Invalid measurements: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8)));
+                            }
+                        }
+                        catch (IOException | RuntimeException e) {
+                            System.err.println("Failed to ingest from " + connection + ": " + e);
+                        }
+                    });
+                }
+                catch (IOException e) {
+                    if (!closed) {
+                        System.err.println("Stopped accepting ingest connections: " + e);
+                    }
+                    return;
+                }
+            }
+        }, "ingest-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Aggregates all complete lines of the file, and then keeps aggregating the lines appended to it until the service is
+     * closed. If the file shrinks, e.g. when it is truncated, it is followed from its start again; the statistics of the
+     * lines read before are kept.
+     */
+    public void follow(Path file) throws IOException {
+        long position;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            position = IncrementalAggregator.endOfLastLine(channel, 0);
+            if (position > 0) {
+                StationTable loaded = new MappedEngine().aggregate(channel, 0, position, options);
+                synchronized (table) {
+                    loaded.mergeInto(table);
+                }
+            }
+        }
+
+        long start = position;
+        Thread follower = new Thread(() -> poll(file, start), "follower-" + file.getFileName());
+        follower.setDaemon(true);
+        followers.add(follower);
+        follower.start();
+    }
+
+    private void poll(Path file, long position) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (!closed) {
+                long size = channel.size();
+                if (size < position) {
+                    position = 0;
+                }
+                else if (size > position) {
+                    channel.position(position);
+                    position += ingest(channel, false);
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("Stopped following " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Aggregates the lines read from the channel up to its end, returning the number of bytes of the lines aggregated. If
+     * {@code completeLastLine} is set, a last line without line break is aggregated as well, otherwise it is left unread.
+     */
+    public long ingest(ReadableByteChannel in, boolean completeLastLine) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(INGEST_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+        return LineBlocks.read(in, block, completeLastLine, (lines, end) -> {
+            synchronized (table) {
+                MappedEngine.aggregateLines(lines, 0, end - 1, table, name, options.stationHash());
+                if (window != null) {
+                    window.aggregate(lines, 0, end);
+                }
+            }
+        });
+    }
+
+    /**
+     * Aggregates the lines of one request read from the channel up to its end, including a last line without line break,
+     * and returns their number of bytes. All lines are validated before the first one is aggregated.
+     *
+     * @throws IllegalArgumentException if a line is invalid or the request is larger than {@link #MAX_REQUEST_SIZE}; no
+     *             line of the request has been aggregated then
+     */
+    public long ingestRequest(ReadableByteChannel in) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(INGEST_BLOCK_SIZE);
+        List<ByteBuffer> validated = new ArrayList<>();
+        long[] lines = { 0 };
+        long size = LineBlocks.read(in, block, true, (blockLines, end) -> {
+            lines[0] = validate(blockLines, end, lines[0]);
+            if ((long) validated.size() * INGEST_BLOCK_SIZE + end > MAX_REQUEST_SIZE) {
+                throw new IllegalArgumentException("Request exceeds " + MAX_REQUEST_SIZE + " bytes");
+            }
+            byte[] copy = new byte[end];
+            blockLines.get(0, copy);
+            validated.add(ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN));
+        });
+
+        byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+        for (ByteBuffer lineBlock : validated) {
+            synchronized (table) {
+                MappedEngine.aggregateLines(lineBlock, 0, lineBlock.limit() - 1, table, name, options.stationHash());
+                if (window != null) {
+                    window.aggregate(lineBlock, 0, lineBlock.limit());
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Checks the lines within {@code [0, end)} of the block, which ends with a line break, returning the number of lines
+     * checked so far.
+     *
+     * @param lines the number of lines checked before this block
+     */
+    static long validate(ByteBuffer block, int end, long lines) {
+        for (int start = 0; start < end; start++) {
+            lines++;
+            int lineEnd = start;
+            while (block.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int valueEnd = lineEnd > start && block.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+
+            int separator = start;
+            while (separator < valueEnd && block.get(separator) != ';') {
+                separator++;
+            }
+            if (separator == valueEnd) {
+                throw new IllegalArgumentException("Line " + lines + " has no ';'");
+            }
+            if (separator == start || separator - start > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Line " + lines + " has a name of " + (separator - start) + " bytes, expected 1 to " + MAX_NAME_LENGTH);
+            }
+            if (!isTemperature(block, separator + 1, valueEnd)) {
+                byte[] value = new byte[Math.min(valueEnd - separator - 1, 16)];
+                block.get(separator + 1, value);
+                throw new IllegalArgumentException("Line " + lines + " has an invalid value '" + new String(value, StandardCharsets.UTF_8) + "', expected e.g. -12.3");
+            }
+            start = lineEnd;
+        }
+        return lines;
+    }
+
+    /**
+     * Whether the bytes within {@code [from, to)} are a temperature in the format of the challenge, {@code -?d?d.d}.
+     */
+    private static boolean isTemperature(ByteBuffer block, int from, int to) {
+        int integral = from < to && block.get(from) == '-' ? from + 1 : from;
+        int integralDigits = to - integral - 2;
+        if (integralDigits < 1 || integralDigits > 2 || block.get(to - 2) != '.') {
+            return false;
+        }
+        for (int i = integral; i < to; i++) {
+            if (i != to - 2 && (block.get(i) < '0' || block.get(i) > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the statistics of the given station, or {@code null} if it has no measurements yet.
+     */
+    public StationStats station(String station) {
+        byte[] name = station.getBytes(StandardCharsets.UTF_8);
+        int hash = MappedEngine.hash(name, name.length, options.stationHash());
+        synchronized (table) {
+            StationStats stats = table.find(name, 0, name.length, hash);
+            return stats != null ? new StationStats(options.histograms()).merge(stats) : null;
+        }
+    }
+
+    /**
+     * Returns the statistics of all stations, sorted by name.
+     */
+    public SortedMap<String, StationStats> stations() {
+        SortedMap<String, StationStats> stations = StationOrder.newSortedMap();
+        synchronized (table) {
+            table.forEach((station, stats) -> stations.put(station, new StationStats(options.histograms()).merge(stats)));
+        }
+        return stations;
+    }
+
+    /**
+     * Returns the statistics of the window, or {@code null} if the service has none.
+     */
+    public SortedMap<String, StationStats> window() {
+        if (window == null) {
+            return null;
+        }
+        synchronized (table) {
+            return window.window();
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange, Supplier<SortedMap<String, StationStats>> all, Function<String, StationStats> one)
+            throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            respond(exchange, 405, "Only GET is supported\n");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        String prefix = exchange.getHttpContext().getPath() + "/";
+        if (path.length() <= prefix.length()) {
+            ResultFormatter body = new ResultFormatter().lines(all.get());
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+            return;
+        }
+
+        StationStats stats = one.apply(path.substring(prefix.length()));
+        if (stats == null) {
+            respond(exchange, 404, "Unknown station\n");
+        }
+        else {
+            respond(exchange, 200, stats + "\n");
+        }
+    }
+
+    private void handleMeasurements(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Only POST is supported\n");
+            return;
+        }
+
+        long ingested;
+        try {
+            ingested = ingestRequest(Channels.newChannel(exchange.getRequestBody()));
+        }
+        catch (IOException | RuntimeException e) {
+            respond(exchange, 400, "Invalid measurements: " + e.getMessage() + "\n");
+            return;
+        }
+        respond(exchange, 200, ingested + " bytes\n");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops serving and following files; the statistics can still be queried through {@link #station(String)} and
+     * {@link #stations()}.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (Thread follower : followers) {
+            follower.interrupt();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        if (ingestChannel != null) {
+            ingestChannel.close();
+        }
+        handlers.shutdown();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates many files in one pass of a single pool of worker threads, for the {@link MappedEngine} and its variants. The
+ * segments of all files are handed out one file after the other, so that workers move on to the next file while the last
+ * segments of the previous one are still being aggregated, instead of waiting for the slowest segment of each file. Each
+ * worker keeps one {@link StationTable} for the whole batch: for per-file results, the worker adds its table to the result
+ * of a file when it moves on to another file and then clears it, keeping its capacity.
+ */
+final class BatchAggregator {
+
+    private final MappedEngine engine;
+    private final EngineOptions options;
+
+    BatchAggregator(MappedEngine engine, EngineOptions options) {
+        this.engine = engine;
+        this.options = options;
+    }
+
+    /**
+     * Aggregates each file separately, returning the results in the order of the files.
+     */
+    Map<Path, SortedMap<String, StationStats>> aggregateEach(List<Path> files) throws IOException {
+        StationTable[] results = run(files, true);
+        Map<Path, SortedMap<String, StationStats>> byFile = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            byFile.put(files.get(i), RangeMerger.merge(new StationTable[]{ results[i] }, options.parallelism()));
+        }
+        return byFile;
+    }
+
+    /**
+     * Aggregates the measurements of all files into one result.
+     */
+    SortedMap<String, StationStats> aggregateAll(List<Path> files) throws IOException {
+        return RangeMerger.merge(run(files, false), options.parallelism());
+    }
+
+    /**
+     * Expands directories to the regular files they contain, and paths with a glob pattern in their file name (e.g.
+     * {@code data/2024-01-*.txt}) to the matching files, each sorted by name. Other paths are returned as they are.
+     */
+    static List<Path> expand(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            String fileName = path.getFileName() != null ? path.getFileName().toString() : "";
+            if (Files.isDirectory(path)) {
+                files.addAll(list(path, "*"));
+            }
+            else if (!Files.exists(path) && fileName.matches(".*[*?\\[{].*")) {
+                Path directory = path.getParent() != null ? path.getParent() : Path.of(".");
+                files.addAll(list(directory, fileName));
+            }
+            else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static List<Path> list(Path directory, String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, glob)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private StationTable[] run(List<Path> files, boolean perFile) throws IOException {
+        StationTable[] results = new StationTable[perFile ? files.size() : 1];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new StationTable(options.histograms());
+        }
+
+        int workers = 1;
+        for (Path file : files) {
+            workers = Math.max(workers, SegmentScheduler.of(0, Files.size(file), options).workers());
+        }
+
+        try (Work work = new Work(files, options)) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[workers];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    StationTable table = new StationTable(options.histograms(), options.catalogue());
+                    byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+                    int file = -1;
+                    try {
+                        for (Work.Item item; (item = work.next()) != null;) {
+                            if (perFile && item.file() != file && file >= 0) {
+                                flush(table, results[file]);
+                            }
+                            file = item.file();
+                            SegmentScheduler.Segment segment = item.segment();
+                            engine.aggregateSegment(item.channel(), segment.start(), segment.end(), segment.start() > 0, item.end(), table, name,
+                                    options.stationHash());
+                            work.done(item);
+                        }
+                        if (file >= 0) {
+                            flush(table, results[perFile ? file : 0]);
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "aggregator-" + i);
+                threads[i].start();
+            }
+
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while aggregating", e);
+            }
+
+            if (failure.get() != null) {
+                throw new IOException("Aggregation failed", failure.get());
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Adds the table to the result and clears it for the next file.
+     */
+    private static void flush(StationTable table, StationTable result) {
+        table.recordMetrics();
+        synchronized (result) {
+            table.mergeInto(result);
+        }
+        table.clear();
+    }
+
+    /**
+     * Hands out the segments of the files one file after the other. Each file is only opened when its first segment is
+     * claimed, and closed as soon as all of its segments have been aggregated, so that only about as many files as there
+     * are workers are open at any time, however many files the batch has.
+     */
+    private static final class Work implements AutoCloseable {
+
+        record Item(int file, FileChannel channel, long end, SegmentScheduler.Segment segment) {
+        }
+
+        private final List<Path> files;
+        private final EngineOptions options;
+        private final FileChannel[] channels;
+        private final int[] active;
+        private SegmentScheduler scheduler;
+        private int file = -1;
+
+        Work(List<Path> files, EngineOptions options) {
+            this.files = files;
+            this.options = options;
+            this.channels = new FileChannel[files.size()];
+            this.active = new int[files.size()];
+        }
+
+        synchronized Item next() throws IOException {
+            while (file < files.size()) {
+                if (scheduler != null) {
+                    SegmentScheduler.Segment segment = scheduler.next();
+                    if (segment != null) {
+                        active[file]++;
+                        return new Item(file, channels[file], scheduler.end(), segment);
+                    }
+                    closeIfDone(file);
+                }
+                scheduler = null;
+                if (++file < files.size()) {
+                    channels[file] = FileChannel.open(files.get(file), StandardOpenOption.READ);
+                    scheduler = SegmentScheduler.of(0, channels[file].size(), options);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Marks the segment of the item as aggregated.
+         */
+        synchronized void done(Item item) throws IOException {
+            active[item.file()]--;
+            if (item.file() != file) {
+                closeIfDone(item.file());
+            }
+        }
+
+        /**
+         * Closes the file once no more of its segments are being aggregated, all of them having been handed out.
+         */
+        private void closeIfDone(int file) throws IOException {
+            if (active[file] == 0 && channels[file] != null) {
+                channels[file].close();
+                channels[file] = null;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] != null) {
+                    channels[i].close();
+                    channels[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+
+/**
+ * The aggregated state of a measurements file up to a given byte offset, which is always right after a line break.
+ * <p>
+ * Besides the offset, a checksum of the bytes preceding it is kept, so that a file which was rewritten or rotated instead
+ * of appended to can be detected.
+ *
+ * @param offset number of bytes of the file covered by the statistics
+ * @param fingerprint checksum of the (up to) {@link #FINGERPRINT_LENGTH} bytes before {@code offset}
+ * @param stats statistics per station of all lines before {@code offset}
+ */
+public record Checkpoint(long offset, long fingerprint, SortedMap<String, StationStats> stats) {
+
+    static final int FINGERPRINT_LENGTH = 4096;
+
+    private static final int MAGIC = 0x31425243; // "1BRC"
+    private static final int VERSION = 1;
+
+    public static Checkpoint empty() {
+        return new Checkpoint(0, fingerprint(ByteBuffer.allocate(0)), Collections.emptySortedMap());
+    }
+
+    /**
+     * Whether this checkpoint still describes the beginning of the given file, i.e. the file was only appended to since.
+     */
+    public boolean matches(FileChannel channel) throws IOException {
+        return channel.size() >= offset && fingerprint == fingerprint(channel, offset);
+    }
+
+    static long fingerprint(FileChannel channel, long offset) throws IOException {
+        long start = Math.max(0, offset - FINGERPRINT_LENGTH);
+        ByteBuffer bytes = ByteBuffer.allocate((int) (offset - start));
+        while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) >= 0) {
+            // continue
+        }
+        return fingerprint(bytes.flip());
+    }
+
+    private static long fingerprint(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    public static Checkpoint read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            }
+
+            long offset = in.readLong();
+            long fingerprint = in.readLong();
+            int size = in.readInt();
+            SortedMap<String, StationStats> stats = StationOrder.newSortedMap();
+            for (int i = 0; i < size; i++) {
+                stats.put(in.readUTF(), new StationStats(in.readInt(), in.readInt(), in.readLong(), in.readLong()));
+            }
+            return new Checkpoint(offset, fingerprint, stats);
+        }
+    }
+
+    /**
+     * Writes this checkpoint to the given file. The file is replaced atomically, so a crash never leaves a partial
+     * checkpoint behind.
+     */
+    public void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeLong(fingerprint);
+            out.writeInt(stats.size());
+            for (Map.Entry<String, StationStats> entry : stats.entrySet()) {
+                StationStats value = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(value.min);
+                out.writeInt(value.max);
+                out.writeLong(value.sum);
+                out.writeLong(value.count);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the stations seen by one thread, as columns indexed by {@link StationDictionary} id: a station takes 24
+ * bytes, and no object per station is needed. Merging the statistics of two threads is a loop over each column, which
+ * the JIT compiles to SIMD instructions, rather than a hash table merge. Ids not seen by a thread keep the neutral
+ * element of each column, e.g. {@link Integer#MAX_VALUE} as min.
+ */
+final class DenseStats {
+
+    private int[] min;
+    private int[] max;
+    private long[] sum;
+    private long[] count;
+    private TemperatureHistogram[] histograms;
+
+    /**
+     * @param histograms whether to keep a {@link TemperatureHistogram} per station
+     */
+    DenseStats(boolean histograms) {
+        this.min = new int[0];
+        this.max = new int[0];
+        this.sum = new long[0];
+        this.count = new long[0];
+        this.histograms = histograms ? new TemperatureHistogram[0] : null;
+        ensureCapacity(1024);
+    }
+
+    void add(int id, int value) {
+        if (id >= min.length) {
+            ensureCapacity(Math.max(id + 1, 2 * min.length));
+        }
+        min[id] = Math.min(min[id], value);
+        max[id] = Math.max(max[id], value);
+        sum[id] += value;
+        count[id]++;
+        if (histograms != null) {
+            TemperatureHistogram histogram = histograms[id];
+            if (histogram == null) {
+                histogram = histograms[id] = new TemperatureHistogram();
+            }
+            histogram.add(value);
+        }
+    }
+
+    void mergeInto(DenseStats target) {
+        int length = min.length;
+        target.ensureCapacity(length);
+        int[] targetMin = target.min;
+        int[] targetMax = target.max;
+        long[] targetSum = target.sum;
+        long[] targetCount = target.count;
+        for (int i = 0; i < length; i++) {
+            targetMin[i] = Math.min(targetMin[i], min[i]);
+        }
+        for (int i = 0; i < length; i++) {
+            targetMax[i] = Math.max(targetMax[i], max[i]);
+        }
+        for (int i = 0; i < length; i++) {
+            targetSum[i] += sum[i];
+        }
+        for (int i = 0; i < length; i++) {
+            targetCount[i] += count[i];
+        }
+        if (histograms != null && target.histograms != null) {
+            for (int i = 0; i < length; i++) {
+                if (histograms[i] != null) {
+                    if (target.histograms[i] == null) {
+                        target.histograms[i] = new TemperatureHistogram();
+                    }
+                    target.histograms[i].merge(histograms[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the given station, or {@code null} if it has no measurements.
+     */
+    StationStats stats(int id) {
+        if (id >= count.length || count[id] == 0) {
+            return null;
+        }
+        StationStats stats = new StationStats(min[id], max[id], sum[id], count[id]);
+        stats.histogram = histograms != null ? histograms[id] : null;
+        return stats;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int length = min.length;
+        if (capacity <= length) {
+            return;
+        }
+        min = Arrays.copyOf(min, capacity);
+        max = Arrays.copyOf(max, capacity);
+        sum = Arrays.copyOf(sum, capacity);
+        count = Arrays.copyOf(count, capacity);
+        Arrays.fill(min, length, capacity, Integer.MAX_VALUE);
+        Arrays.fill(max, length, capacity, Integer.MIN_VALUE);
+        if (histograms != null) {
+            histograms = Arrays.copyOf(histograms, capacity);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Variant of the {@link MappedEngine} in which all worker threads share one {@link StationDictionary}, mapping station
+ * names to dense ids, and keep their statistics in {@link DenseStats} columns indexed by id. The tables of the threads
+ * thus never need to be matched up by name: they are merged by adding up arrays, and the names are only looked at once
+ * for the result. The stations of a {@link StationCatalogue} are looked up in it and take its slots as ids.
+ */
+public class DictionaryEngine implements AggregationEngine {
+
+    @Override
+    public String name() {
+        return "dictionary";
+    }
+
+    @Override
+    public boolean supportsHistograms(boolean stream) {
+        return true;
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        StationDictionary dictionary = new StationDictionary(options.catalogue());
+        DenseStats stats = aggregate(input, options, dictionary);
+
+        EngineMetrics.StageEvent sort = EngineMetrics.begin(EngineMetrics.Stage.SORT);
+        SortedMap<String, StationStats> results = StationOrder.newSortedMap();
+        for (int id = 0; id < dictionary.size(); id++) {
+            StationStats station = stats.stats(id);
+            if (station != null) {
+                results.merge(new String(dictionary.name(id), StandardCharsets.UTF_8), station, StationStats::merge);
+            }
+        }
+        EngineMetrics.end(sort, 0);
+        return results;
+    }
+
+    @Override
+    public void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        StationDictionary dictionary = new StationDictionary(options.catalogue());
+        DenseStats stats = aggregate(input, options, dictionary);
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        for (int id = 0; id < dictionary.size(); id++) {
+            byte[] name = dictionary.name(id);
+            StationStats station = stats.stats(id);
+            if (station != null) {
+                writer.add(name, 0, name.length, station.min, station.max, station.sum, station.count);
+            }
+        }
+        writer.write(snapshot);
+    }
+
+    private static DenseStats aggregate(Path input, EngineOptions options, StationDictionary dictionary) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long end = channel.size();
+            SegmentScheduler scheduler = SegmentScheduler.of(0, end, options);
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            DenseStats[] stats = new DenseStats[scheduler.workers()];
+            Thread[] threads = new Thread[stats.length];
+
+            for (int i = 0; i < threads.length; i++) {
+                DenseStats threadStats = stats[i] = new DenseStats(options.histograms());
+                threads[i] = new Thread(() -> {
+                    byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+                    StationDictionary.Lookups lookups = new StationDictionary.Lookups();
+                    try {
+                        for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
+                            aggregateSegment(channel, segment.start(), segment.end(), end, dictionary, threadStats, lookups, name, options.stationHash());
+                        }
+                        lookups.record();
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "aggregator-" + i);
+                threads[i].start();
+            }
+
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while aggregating", e);
+            }
+
+            if (failure.get() != null) {
+                throw new IOException("Aggregation failed", failure.get());
+            }
+
+            EngineMetrics.StageEvent merge = EngineMetrics.begin(EngineMetrics.Stage.MERGE);
+            for (int i = 1; i < stats.length; i++) {
+                stats[i].mergeInto(stats[0]);
+            }
+            EngineMetrics.end(merge, 0);
+            return stats[0];
+        }
+    }
+
+    /**
+     * Aggregates the lines starting within the segment, like {@link MappedEngine#aggregateSegment}.
+     */
+    private static void aggregateSegment(FileChannel channel, long position, long segmentEnd, long end, StationDictionary dictionary, DenseStats stats,
+                                         StationDictionary.Lookups lookups, byte[] name, StationHash stationHash)
+            throws IOException {
+        long mapEnd = Math.min(end, segmentEnd + MappedEngine.MAX_LINE_LENGTH);
+        EngineMetrics.StageEvent map = EngineMetrics.begin(EngineMetrics.Stage.MAP);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, mapEnd - position);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        EngineMetrics.end(map, 0);
+
+        int offset = 0;
+        if (position > 0) {
+            while (offset < buffer.limit() && buffer.get(offset++) != '\n') {
+                // continue
+            }
+        }
+
+        EngineMetrics.StageEvent parse = EngineMetrics.begin(EngineMetrics.Stage.PARSE);
+        int limit = (int) (Math.min(segmentEnd, end - 1) - position);
+        while (offset <= limit) {
+            int length = 0;
+            int hash = 0;
+            for (byte b; (b = buffer.get(offset++)) != ';';) {
+                name[length++] = b;
+                hash = 31 * hash + b;
+            }
+            if (stationHash != null) {
+                hash = stationHash.hash(name, 0, length);
+            }
+
+            long word = TemperatureDecoder.word(buffer, offset);
+            offset += TemperatureDecoder.length(word);
+            if (offset < buffer.limit() && buffer.get(offset) == '\r') {
+                offset++;
+            }
+            offset++;
+
+            stats.add(dictionary.id(name, length, hash, lookups), TemperatureDecoder.decode(word));
+        }
+        EngineMetrics.end(parse, Math.min(segmentEnd, end) - position);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Optional instrumentation of the engines, enabled with the system property {@code onebrc.metrics=true}. Each thread
+ * counts into its own {@link ThreadStats}, so recording needs neither locks nor shared cache lines: the bytes and rows it
+ * aggregated, the slots it probed in its station table, table resizes, and the time spent in each {@link Stage}.
+ * <p>
+ * The counters are exported by the MXBean {@value #OBJECT_NAME}, and each stage span and table resize is also emitted as a
+ * JFR event ({@code dev.morling.onebrc.Stage}, {@code dev.morling.onebrc.TableResize}), so that a recording can be
+ * correlated with GC and page fault activity. When disabled, all recording methods return right away on the constant
+ * {@link #ENABLED}, which the JIT compiles away.
+ */
+public final class EngineMetrics implements EngineMetricsMXBean {
+
+    public static final String PROPERTY = "onebrc.metrics";
+    public static final String OBJECT_NAME = "dev.morling.onebrc:type=EngineMetrics";
+
+    public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    /**
+     * The stages timed. Note that a mapped file is only read when it is accessed, so page faults are part of
+     * {@link #PARSE}, not of {@link #MAP}.
+     */
+    public enum Stage {
+        /** Mapping or reading the input. */
+        MAP,
+        /** Parsing lines and adding them to the station tables. */
+        PARSE,
+        /** Merging the tables of the worker threads. */
+        MERGE,
+        /** Building the sorted result. */
+        SORT,
+        /** Printing or writing the result. */
+        PRINT
+    }
+
+    private static final EngineMetrics INSTANCE = new EngineMetrics();
+    private static final Queue<ThreadStats> THREADS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<ThreadStats> CURRENT = ThreadLocal.withInitial(() -> {
+        ThreadStats stats = new ThreadStats(Thread.currentThread().getName());
+        THREADS.add(stats);
+        return stats;
+    });
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException e) {
+                throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+            }
+        }
+    }
+
+    private EngineMetrics() {
+    }
+
+    /**
+     * Starts a span of the given stage on the current thread, returning {@code null} if metrics are disabled.
+     */
+    public static StageEvent begin(Stage stage) {
+        if (!ENABLED) {
+            return null;
+        }
+        StageEvent event = new StageEvent();
+        event.stage = stage.name();
+        event.stageIndex = stage.ordinal();
+        event.begin();
+        event.startNanos = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * Ends the span started by {@link #begin(Stage)}, accounting the given number of bytes to it.
+     */
+    public static void end(StageEvent event, long bytes) {
+        if (event == null) {
+            return;
+        }
+        ThreadStats stats = CURRENT.get();
+        stats.stageNanos[event.stageIndex] += System.nanoTime() - event.startNanos;
+        stats.bytes += bytes;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    /**
+     * Adds the lookups of a station table on the current thread, and the slots they probed; one probe per lookup means no
+     * collisions at all.
+     */
+    public static void lookups(long rows, long probes) {
+        if (ENABLED) {
+            ThreadStats stats = CURRENT.get();
+            stats.rows += rows;
+            stats.probes += probes;
+        }
+    }
+
+    /**
+     * Records that a station table of the current thread grew from {@code oldCapacity} to {@code newCapacity} slots.
+     */
+    public static void resized(String table, int oldCapacity, int newCapacity) {
+        if (ENABLED) {
+            CURRENT.get().resizes++;
+            TableResizeEvent event = new TableResizeEvent();
+            event.table = table;
+            event.oldCapacity = oldCapacity;
+            event.newCapacity = newCapacity;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns a one line summary per thread plus the totals, e.g. to print after a run.
+     */
+    public static String summary() {
+        StringBuilder summary = new StringBuilder();
+        List<ThreadStats> threads = INSTANCE.getThreadStats();
+        for (ThreadStats stats : threads) {
+            summary.append(stats).append('\n');
+        }
+        ThreadStats total = INSTANCE.total();
+        return summary.append(total).toString();
+    }
+
+    @Override
+    public long getBytes() {
+        return total().bytes;
+    }
+
+    @Override
+    public long getRows() {
+        return total().rows;
+    }
+
+    @Override
+    public long getProbes() {
+        return total().probes;
+    }
+
+    @Override
+    public double getAverageProbeLength() {
+        return total().getAverageProbeLength();
+    }
+
+    @Override
+    public long getResizes() {
+        return total().resizes;
+    }
+
+    @Override
+    public long getMapNanos() {
+        return total().getMapNanos();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return total().getParseNanos();
+    }
+
+    @Override
+    public long getMergeNanos() {
+        return total().getMergeNanos();
+    }
+
+    @Override
+    public long getSortNanos() {
+        return total().getSortNanos();
+    }
+
+    @Override
+    public long getPrintNanos() {
+        return total().getPrintNanos();
+    }
+
+    @Override
+    public List<ThreadStats> getThreadStats() {
+        return new ArrayList<>(THREADS);
+    }
+
+    /**
+     * Forgets all threads which have finished; the counters of running threads are kept, as they still write to them.
+     */
+    @Override
+    public void reset() {
+        THREADS.removeIf(stats -> stats.thread.get() == null || !stats.thread.get().isAlive());
+    }
+
+    private ThreadStats total() {
+        ThreadStats total = new ThreadStats("total");
+        for (ThreadStats stats : THREADS) {
+            total.bytes += stats.bytes;
+            total.rows += stats.rows;
+            total.probes += stats.probes;
+            total.resizes += stats.resizes;
+            for (int i = 0; i < total.stageNanos.length; i++) {
+                total.stageNanos[i] += stats.stageNanos[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The counters of one thread. They are written by that thread only, and read without synchronization, so readers
+     * may see slightly stale values while the thread is running.
+     */
+    public static final class ThreadStats {
+
+        private final String name;
+        private final WeakReference<Thread> thread;
+        private long bytes;
+        private long rows;
+        private long probes;
+        private long resizes;
+        private final long[] stageNanos = new long[Stage.values().length];
+
+        private ThreadStats(String name) {
+            this.name = name;
+            this.thread = new WeakReference<>(Thread.currentThread());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getProbes() {
+            return probes;
+        }
+
+        public double getAverageProbeLength() {
+            return rows == 0 ? 0 : (double) probes / rows;
+        }
+
+        public long getResizes() {
+            return resizes;
+        }
+
+        public long getMapNanos() {
+            return stageNanos[Stage.MAP.ordinal()];
+        }
+
+        public long getParseNanos() {
+            return stageNanos[Stage.PARSE.ordinal()];
+        }
+
+        public long getMergeNanos() {
+            return stageNanos[Stage.MERGE.ordinal()];
+        }
+
+        public long getSortNanos() {
+            return stageNanos[Stage.SORT.ordinal()];
+        }
+
+        public long getPrintNanos() {
+            return stageNanos[Stage.PRINT.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            return "%s: %,d bytes, %,d rows, %.2f probes/row, %d resizes, map %,d us, parse %,d us, merge %,d us, sort %,d us, print %,d us".formatted(
+                    name, bytes, rows, getAverageProbeLength(), resizes, getMapNanos() / 1000, getParseNanos() / 1000, getMergeNanos() / 1000,
+                    getSortNanos() / 1000, getPrintNanos() / 1000);
+        }
+    }
+
+    @Name("dev.morling.onebrc.Stage")
+    @Label("Aggregation Stage")
+    @Category("1BRC")
+    public static final class StageEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        transient int stageIndex;
+        transient long startNanos;
+    }
+
+    @Name("dev.morling.onebrc.TableResize")
+    @Label("Station Table Resize")
+    @Category("1BRC")
+    static final class TableResizeEvent extends Event {
+
+        @Label("Table")
+        String table;
+
+        @Label("Old Capacity")
+        int oldCapacity;
+
+        @Label("New Capacity")
+        int newCapacity;
+    }
+}
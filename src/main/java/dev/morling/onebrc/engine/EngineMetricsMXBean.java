@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.List;
+
+/**
+ * Management interface of the {@link EngineMetrics}, summed up over all threads which recorded metrics.
+ */
+public interface EngineMetricsMXBean {
+
+    long getBytes();
+
+    long getRows();
+
+    long getProbes();
+
+    double getAverageProbeLength();
+
+    long getResizes();
+
+    long getMapNanos();
+
+    long getParseNanos();
+
+    long getMergeNanos();
+
+    long getSortNanos();
+
+    long getPrintNanos();
+
+    List<EngineMetrics.ThreadStats> getThreadStats();
+
+    void reset();
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Tuning knobs handed to an {@link AggregationEngine}. Engines are free to ignore options they have no use for.
+ *
+ * @param parallelism number of worker threads (or file slices) to use
+ * @param segmentSize size in bytes of the chunks an engine reads or maps at once
+ * @param stationHash seeded hash for station names, or {@code null} for the engine's own, faster but predictable hash
+ * @param histograms whether to keep a {@link TemperatureHistogram} per station, for percentiles
+ * @param catalogue the stations expected in the input, which are looked up by a perfect hash, or {@code null}
+ */
+public record EngineOptions(int parallelism, int segmentSize, StationHash stationHash, boolean histograms, StationCatalogue catalogue) {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * System property enabling the {@link StationHash} for {@link #defaults()}, either a seed or {@code random}.
+     */
+    public static final String HASH_SEED_PROPERTY = "onebrc.hashSeed";
+
+    public EngineOptions {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 1024 bytes: " + segmentSize);
+        }
+    }
+
+    public EngineOptions(int parallelism, int segmentSize) {
+        this(parallelism, segmentSize, null, false, null);
+    }
+
+    public EngineOptions(int parallelism, int segmentSize, StationHash stationHash) {
+        this(parallelism, segmentSize, stationHash, false, null);
+    }
+
+    public static EngineOptions defaults() {
+        String hashSeed = System.getProperty(HASH_SEED_PROPERTY);
+        StationHash stationHash = hashSeed != null ? StationHash.of(hashSeed) : null;
+        return new EngineOptions(Runtime.getRuntime().availableProcessors(), DEFAULT_SEGMENT_SIZE, stationHash);
+    }
+
+    public EngineOptions withParallelism(int parallelism) {
+        return new EngineOptions(parallelism, segmentSize, stationHash, histograms, catalogue);
+    }
+
+    public EngineOptions withSegmentSize(int segmentSize) {
+        return new EngineOptions(parallelism, segmentSize, stationHash, histograms, catalogue);
+    }
+
+    public EngineOptions withStationHash(StationHash stationHash) {
+        return new EngineOptions(parallelism, segmentSize, stationHash, histograms, catalogue);
+    }
+
+    public EngineOptions withHistograms(boolean histograms) {
+        return new EngineOptions(parallelism, segmentSize, stationHash, histograms, catalogue);
+    }
+
+    public EngineOptions withCatalogue(StationCatalogue catalogue) {
+        return new EngineOptions(parallelism, segmentSize, stationHash, histograms, catalogue);
+    }
+}
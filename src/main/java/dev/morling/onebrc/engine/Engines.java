@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Lookup of the {@link AggregationEngine} implementations registered on the class path.
+ */
+public final class Engines {
+
+    private Engines() {
+    }
+
+    /**
+     * Returns a new instance of each registered engine. Engines which cannot be instantiated in the current JVM, e.g. as they
+     * need {@code --add-modules jdk.incubator.vector} or {@code --enable-preview}, are skipped.
+     */
+    public static List<AggregationEngine> all() {
+        List<AggregationEngine> engines = new ArrayList<>();
+        Iterator<AggregationEngine> providers = ServiceLoader.load(AggregationEngine.class).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    return engines;
+                }
+                engines.add(providers.next());
+            }
+            catch (ServiceConfigurationError | LinkageError e) {
+                // not available in this JVM, e.g. compiled with preview features; the iterator continues with the next provider
+            }
+        }
+    }
+
+    public static List<String> names() {
+        return all().stream()
+                .map(AggregationEngine::name)
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * Returns a new instance of the engine with the given name.
+     *
+     * @throws IllegalArgumentException if no such engine is registered
+     */
+    public static AggregationEngine byName(String name) {
+        return all().stream()
+                .filter(engine -> engine.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown engine '" + name + "', available: " + names()));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+
+/**
+ * Keeps the statistics of a growing measurements file up to date. Each refresh only parses the lines appended since the
+ * previous {@link Checkpoint} and merges them into it, so its cost follows the size of the new data rather than the size of
+ * the file. An incomplete last line is left for the next refresh.
+ * <p>
+ * If the file no longer starts with the checkpointed content (e.g. it was truncated or rotated), it is aggregated from the
+ * start again.
+ * <p>
+ * Usage: {@code IncrementalAggregator <measurements file> <checkpoint file>}
+ */
+public class IncrementalAggregator {
+
+    private static final int TAIL_READ_SIZE = 4096;
+
+    private final MappedEngine engine;
+    private final EngineOptions options;
+
+    public IncrementalAggregator(EngineOptions options) {
+        this.engine = new MappedEngine();
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: IncrementalAggregator <measurements file> <checkpoint file>");
+            System.exit(1);
+        }
+
+        System.out.println(new IncrementalAggregator(EngineOptions.defaults()).refresh(Path.of(args[0]), Path.of(args[1])));
+    }
+
+    /**
+     * Brings the checkpoint stored in {@code checkpointFile} up to date with {@code input} and returns the statistics of all
+     * complete lines of the file. The checkpoint file is created if it doesn't exist yet.
+     */
+    public SortedMap<String, StationStats> refresh(Path input, Path checkpointFile) throws IOException {
+        Checkpoint checkpoint = Files.exists(checkpointFile) ? Checkpoint.read(checkpointFile) : Checkpoint.empty();
+        Checkpoint updated = refresh(input, checkpoint);
+        if (updated != checkpoint) {
+            updated.write(checkpointFile);
+        }
+        return updated.stats();
+    }
+
+    public Checkpoint refresh(Path input, Checkpoint checkpoint) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            if (!checkpoint.matches(channel)) {
+                checkpoint = Checkpoint.empty();
+            }
+
+            long end = endOfLastLine(channel, checkpoint.offset());
+            if (end == checkpoint.offset()) {
+                return checkpoint;
+            }
+
+            SortedMap<String, StationStats> stats = StationOrder.newSortedMap();
+            checkpoint.stats().forEach((station, value) -> stats.put(station, new StationStats().merge(value)));
+            engine.aggregate(channel, checkpoint.offset(), end, options).mergeInto(stats);
+
+            return new Checkpoint(end, Checkpoint.fingerprint(channel, end), stats);
+        }
+    }
+
+    /**
+     * Returns the position right after the last line break of the file, or {@code from} if there is none after it.
+     */
+    static long endOfLastLine(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TAIL_READ_SIZE);
+        long end = channel.size();
+
+        while (end > from) {
+            long start = Math.max(from, end - TAIL_READ_SIZE);
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                // continue
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+}
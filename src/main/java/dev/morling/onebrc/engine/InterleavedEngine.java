@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variant of the {@link MappedEngine} which walks each segment with three cursors at once instead of one. The segment is
+ * split into three line-aligned parts, and every iteration aggregates the next line of each part; as the lines are
+ * independent of each other, the CPU can overlap parsing one line with the table probes of the others, instead of
+ * waiting for each probe before it finds the start of the next line. When the shorter parts are done, the remaining
+ * lines are aggregated one cursor at a time.
+ */
+public class InterleavedEngine extends MappedEngine {
+
+    /**
+     * Segments shorter than this are walked with a single cursor.
+     */
+    private static final int MIN_INTERLEAVED_LENGTH = 64 * MAX_LINE_LENGTH;
+
+    @Override
+    public String name() {
+        return "interleaved";
+    }
+
+    @Override
+    void aggregateSegmentLines(ByteBuffer buffer, int offset, int limit, StationTable table, byte[] name, StationHash stationHash) {
+        int length = limit - offset;
+        if (length < MIN_INTERLEAVED_LENGTH) {
+            aggregateLines(buffer, offset, limit, table, name, stationHash);
+            return;
+        }
+
+        // each cursor aggregates the lines starting before the start of the next one, the last those up to the limit
+        int first = offset;
+        int second = nextLine(buffer, offset + length / 3);
+        int third = nextLine(buffer, offset + 2 * (length / 3));
+        int firstEnd = second;
+        int secondEnd = third;
+
+        while (first < firstEnd && second < secondEnd && third <= limit) {
+            first = aggregateLine(buffer, first, table, name, stationHash);
+            second = aggregateLine(buffer, second, table, name, stationHash);
+            third = aggregateLine(buffer, third, table, name, stationHash);
+        }
+
+        while (first < firstEnd) {
+            first = aggregateLine(buffer, first, table, name, stationHash);
+        }
+        while (second < secondEnd) {
+            second = aggregateLine(buffer, second, table, name, stationHash);
+        }
+        while (third <= limit) {
+            third = aggregateLine(buffer, third, table, name, stationHash);
+        }
+    }
+
+    /**
+     * Returns the start of the first line starting at or after {@code position}.
+     */
+    private static int nextLine(ByteBuffer buffer, int position) {
+        while (buffer.get(position - 1) != '\n') {
+            position++;
+        }
+        return position;
+    }
+}
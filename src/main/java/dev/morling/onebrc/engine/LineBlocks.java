@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a channel into one reused block, handing over the complete lines of each block; the incomplete last line is moved
+ * to the start of the block for the next read. Unlike the {@link StreamingAggregator}, the lines are consumed on the
+ * reading thread, in the order of the input.
+ */
+final class LineBlocks {
+
+    /**
+     * Receives the lines within {@code [0, end)} of the block, whose limit is set to {@code end}.
+     */
+    @FunctionalInterface
+    interface Consumer {
+        void accept(ByteBuffer block, int end);
+    }
+
+    private LineBlocks() {
+    }
+
+    /**
+     * Reads the channel up to its end, returning the number of bytes of the lines handed over. If
+     * {@code completeLastLine} is set, a last line without line break is handed over with a line break added, otherwise
+     * it is left unread.
+     */
+    static long read(ReadableByteChannel in, ByteBuffer block, boolean completeLastLine, Consumer consumer) throws IOException {
+        long consumed = 0;
+        block.clear();
+
+        while (true) {
+            // keep room for a line break after an incomplete last line
+            block.limit(block.capacity() - 1);
+            boolean eof = false;
+            while (block.hasRemaining() && !eof) {
+                eof = in.read(block) < 0;
+            }
+
+            int filled = block.position();
+            int end = filled;
+            while (end > 0 && block.get(end - 1) != '\n') {
+                end--;
+            }
+            if (eof && completeLastLine && end < filled) {
+                block.limit(block.capacity()).put((byte) '\n');
+                end = ++filled;
+            }
+            else if (end == 0 && !eof) {
+                throw new IOException("No line break within " + filled + " bytes");
+            }
+
+            if (end > 0) {
+                block.limit(end);
+                consumer.accept(block, end);
+                consumed += end;
+            }
+            if (eof) {
+                return consumed;
+            }
+            block.limit(filled).position(end);
+            block.compact();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Splits measurement lines using the Vector API: the input is compared against ';' and '\n' one {@link ByteVector} at a
+ * time, and the positions of the matches are taken from the resulting bit masks. The lines found are emitted into a
+ * {@link Batch}, so that an engine can tokenize many lines at full vector width and parse them afterwards. The bytes at
+ * the end of the range which don't fill a vector are scanned one at a time.
+ * <p>
+ * As neither station names nor temperatures contain ';', every line has exactly one ';' followed by one '\n'. Needs
+ * {@code --add-modules jdk.incubator.vector} and {@code --enable-preview}.
+ */
+public final class LineSplitter {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LENGTH = SPECIES.length();
+
+    private LineSplitter() {
+    }
+
+    /**
+     * Emits the lines within {@code [from, to)} of {@code data} into the batch, until the batch is full or no complete line
+     * is left. {@code from} must be the beginning of a line. If {@code to} is the end of {@code data}, a last line without
+     * line break is emitted as well, with its end at {@code to}.
+     *
+     * @return the beginning of the first line which hasn't been emitted, i.e. where to continue with the next batch
+     */
+    public static long split(MemorySegment data, long from, long to, Batch batch) {
+        batch.clear();
+        long lineStart = from;
+        long semicolon = -1;
+        long position = from;
+
+        for (; position <= to - LENGTH; position += LENGTH) {
+            ByteVector vector = ByteVector.fromMemorySegment(SPECIES, data, position, ByteOrder.nativeOrder());
+            long semicolons = vector.eq((byte) ';').toLong();
+            long matches = semicolons | vector.eq((byte) '\n').toLong();
+
+            while (matches != 0) {
+                int index = Long.numberOfTrailingZeros(matches);
+                long bit = matches & -matches;
+                matches ^= bit;
+
+                if ((semicolons & bit) != 0) {
+                    semicolon = position + index;
+                }
+                else {
+                    batch.add(lineStart, semicolon, position + index);
+                    lineStart = position + index + 1;
+                    semicolon = -1;
+                    if (batch.isFull()) {
+                        return lineStart;
+                    }
+                }
+            }
+        }
+
+        for (; position < to; position++) {
+            byte b = data.get(ValueLayout.JAVA_BYTE, position);
+            if (b == ';') {
+                semicolon = position;
+            }
+            else if (b == '\n') {
+                batch.add(lineStart, semicolon, position);
+                lineStart = position + 1;
+                semicolon = -1;
+                if (batch.isFull()) {
+                    return lineStart;
+                }
+            }
+        }
+
+        if (lineStart < to && semicolon >= lineStart && to == data.byteSize()) {
+            batch.add(lineStart, semicolon, to);
+            lineStart = to;
+        }
+        return lineStart;
+    }
+
+    /**
+     * Positions of a batch of lines, kept in one {@code long[]} with three entries per line.
+     */
+    public static final class Batch {
+
+        private final long[] lines;
+        private int size;
+
+        public Batch(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
+            }
+            lines = new long[3 * capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long lineStart(int index) {
+            return lines[3 * index];
+        }
+
+        public long semicolon(int index) {
+            return lines[3 * index + 1];
+        }
+
+        /**
+         * The position of the line break, or the end of the data for a last line without one.
+         */
+        public long lineEnd(int index) {
+            return lines[3 * index + 2];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isFull() {
+            return 3 * size == lines.length;
+        }
+
+        private void add(long lineStart, long semicolon, long lineEnd) {
+            int offset = 3 * size++;
+            lines[offset] = lineStart;
+            lines[offset + 1] = semicolon;
+            lines[offset + 2] = lineEnd;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Engine built from the shared components: the input is memory-mapped in segments handed out by a {@link SegmentScheduler},
+ * which worker threads claim one after the other, each thread aggregating into its own {@link StationTable}.
+ * <p>
+ * Besides complete files it can aggregate any line-aligned byte range of a file, which is what incremental and sharded
+ * runs build upon.
+ */
+public class MappedEngine implements AggregationEngine {
+
+    /**
+     * Longest possible line: 100 bytes station name, ";-99.9" and the line break.
+     */
+    static final int MAX_LINE_LENGTH = 108;
+
+    @Override
+    public String name() {
+        return "mapped";
+    }
+
+    @Override
+    public boolean supportsHistograms(boolean stream) {
+        return true;
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            return RangeMerger.merge(aggregateTables(channel, 0, channel.size(), options), options.parallelism());
+        }
+    }
+
+    @Override
+    public void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            aggregate(channel, 0, channel.size(), options).writeTo(writer);
+        }
+        writer.write(snapshot);
+    }
+
+    /**
+     * Aggregates all files with one pool of worker threads, see {@link BatchAggregator}.
+     */
+    @Override
+    public SortedMap<String, StationStats> aggregate(List<Path> inputs, EngineOptions options) throws IOException {
+        return new BatchAggregator(this, options).aggregateAll(inputs);
+    }
+
+    /**
+     * Aggregates each file separately with one pool of worker threads for all files, see {@link BatchAggregator}.
+     */
+    @Override
+    public Map<Path, SortedMap<String, StationStats>> aggregateEach(List<Path> inputs, EngineOptions options) throws IOException {
+        return new BatchAggregator(this, options).aggregateEach(inputs);
+    }
+
+    /**
+     * Aggregates all lines which start within {@code [start, end)}. {@code start} must be the beginning of a line, and
+     * {@code end} either the end of the file or the position right after a line break.
+     */
+    public SortedMap<String, StationStats> aggregate(Path input, long start, long end, EngineOptions options) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            return RangeMerger.merge(aggregateTables(channel, start, end, options), options.parallelism());
+        }
+    }
+
+    StationTable aggregate(FileChannel channel, long start, long end, EngineOptions options) throws IOException {
+        StationTable[] tables = aggregateTables(channel, start, end, options);
+        EngineMetrics.StageEvent merge = EngineMetrics.begin(EngineMetrics.Stage.MERGE);
+        StationTable result = tables[0];
+        for (int i = 1; i < tables.length; i++) {
+            tables[i].mergeInto(result);
+        }
+        EngineMetrics.end(merge, 0);
+        return result;
+    }
+
+    /**
+     * Aggregates the range, returning the tables of the worker threads without merging them.
+     */
+    private StationTable[] aggregateTables(FileChannel channel, long start, long end, EngineOptions options) throws IOException {
+        if (start < 0 || end < start || end > channel.size()) {
+            throw new IllegalArgumentException("Invalid range [" + start + ", " + end + ") for file of size " + channel.size());
+        }
+
+        SegmentScheduler scheduler = SegmentScheduler.of(start, end, options);
+        int threadCount = scheduler.workers();
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        StationTable[] tables = new StationTable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            int thread = i;
+            threads[i] = new Thread(() -> {
+                StationTable table = new StationTable(options.histograms(), options.catalogue());
+                byte[] name = new byte[MAX_LINE_LENGTH];
+                try {
+                    for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
+                        aggregateSegment(channel, segment.start(), segment.end(), segment.start() > start, end, table, name, options.stationHash());
+                    }
+                    table.recordMetrics();
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                tables[thread] = table;
+            }, "aggregator-" + i);
+            threads[i].start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while aggregating", e);
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Aggregation failed", failure.get());
+        }
+        return tables;
+    }
+
+    /**
+     * Aggregates the lines starting within {@code (position, segmentEnd]}, or {@code [position, segmentEnd]} for the first
+     * segment, which also start before {@code end}. The line starting right at a segment boundary thus belongs to the
+     * preceding segment.
+     */
+    void aggregateSegment(FileChannel channel, long position, long segmentEnd, boolean skipFirstLine, long end, StationTable table,
+                          byte[] name, StationHash stationHash)
+            throws IOException {
+        long mapEnd = Math.min(end, segmentEnd + MAX_LINE_LENGTH);
+        EngineMetrics.StageEvent map = EngineMetrics.begin(EngineMetrics.Stage.MAP);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, mapEnd - position);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        EngineMetrics.end(map, 0);
+
+        int offset = 0;
+        if (skipFirstLine) {
+            while (offset < buffer.limit() && buffer.get(offset++) != '\n') {
+                // continue
+            }
+        }
+
+        EngineMetrics.StageEvent parse = EngineMetrics.begin(EngineMetrics.Stage.PARSE);
+        aggregateSegmentLines(buffer, offset, (int) (Math.min(segmentEnd, end - 1) - position), table, name, stationHash);
+        EngineMetrics.end(parse, Math.min(segmentEnd, end) - position);
+    }
+
+    /**
+     * Aggregates the lines of a mapped segment like {@link #aggregateLines}, for engines which walk them differently.
+     */
+    void aggregateSegmentLines(ByteBuffer buffer, int offset, int limit, StationTable table, byte[] name, StationHash stationHash) {
+        aggregateLines(buffer, offset, limit, table, name, stationHash);
+    }
+
+    /**
+     * Aggregates the lines of the buffer starting at {@code offset}, up to the last line starting at or before
+     * {@code limit}. {@code name} is the scratch space for station names, of at least {@link #MAX_LINE_LENGTH} bytes. Names
+     * are hashed with the given {@link StationHash}, or with a polynomial hash if it is {@code null}.
+     */
+    static void aggregateLines(ByteBuffer buffer, int offset, int limit, StationTable table, byte[] name, StationHash stationHash) {
+        while (offset <= limit) {
+            offset = aggregateLine(buffer, offset, table, name, stationHash);
+        }
+    }
+
+    /**
+     * Aggregates the line starting at {@code offset}, returning the offset of the next line. Names of up to
+     * {@link ShortKey#MAX_LENGTH} bytes are read as two words and looked up by them, also in the {@link StationCatalogue} of
+     * the table, and only longer names, or names too close to the end of the buffer, are copied into {@code name}.
+     */
+    static int aggregateLine(ByteBuffer buffer, int offset, StationTable table, byte[] name, StationHash stationHash) {
+        StationStats stats = null;
+        if (offset + ShortKey.MAX_LENGTH < buffer.limit() && buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            long first = buffer.getLong(offset);
+            long second = buffer.getLong(offset + Long.BYTES);
+            long firstDelimiters = ShortKey.delimiters(first);
+            long secondDelimiters = ShortKey.delimiters(second);
+            int length = -1;
+            if (firstDelimiters != 0) {
+                length = ShortKey.firstIndex(firstDelimiters);
+                first = ShortKey.head(first, length);
+                second = 0;
+            }
+            else if (secondDelimiters != 0) {
+                length = Long.BYTES + ShortKey.firstIndex(secondDelimiters);
+                second = ShortKey.head(second, length - Long.BYTES);
+            }
+            else if (buffer.get(offset + ShortKey.MAX_LENGTH) == ';') {
+                length = ShortKey.MAX_LENGTH;
+            }
+            if (length >= 0) {
+                int hash = stationHash != null ? stationHash.hash(first, second, length) : ShortKey.hash(first, second, length);
+                stats = table.get(first, second, length, hash);
+                offset += length + 1;
+            }
+        }
+        if (stats == null) {
+            int length = 0;
+            int hash = 0;
+            for (byte b; (b = buffer.get(offset++)) != ';';) {
+                name[length++] = b;
+                hash = 31 * hash + b;
+            }
+            if (stationHash != null || length <= ShortKey.MAX_LENGTH) {
+                hash = hash(name, length, stationHash);
+            }
+            stats = table.get(name, 0, length, hash);
+        }
+
+        long word = TemperatureDecoder.word(buffer, offset);
+        offset += TemperatureDecoder.length(word);
+        if (offset < buffer.limit() && buffer.get(offset) == '\r') {
+            offset++;
+        }
+        offset++;
+
+        stats.add(TemperatureDecoder.decode(word));
+        return offset;
+    }
+
+    /**
+     * Returns the hash {@link #aggregateLines} computes for the given name: the {@link ShortKey#hash} of names of up to
+     * {@link ShortKey#MAX_LENGTH} bytes and a polynomial hash of longer names, unless a {@link StationHash} is given.
+     */
+    static int hash(byte[] name, int length, StationHash stationHash) {
+        if (stationHash != null) {
+            return stationHash.hash(name, 0, length);
+        }
+        if (length <= ShortKey.MAX_LENGTH) {
+            return ShortKey.hash(ShortKey.first(name, 0, length), ShortKey.second(name, 0, length), length);
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + name[i];
+        }
+        return hash;
+    }
+
+    static SortedMap<String, StationStats> toSortedMap(StationTable table) {
+        return RangeMerger.merge(new StationTable[]{ table }, 1);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Engine using the {@code java.lang.foreign} API for both the input and the station tables: the whole file is mapped as one
+ * {@link MemorySegment}, and each worker aggregates into an {@link OffHeapStationTable}, so that neither reading nor
+ * aggregating allocates on the heap. Needs {@code --enable-preview}.
+ */
+public class OffHeapEngine implements AggregationEngine {
+
+    private static final ValueLayout.OfLong LITTLE_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    @Override
+    public String name() {
+        return "offheap";
+    }
+
+    @Override
+    public SortedMap<String, StationStats> aggregate(Path input, EngineOptions options) throws IOException {
+        SortedMap<String, StationStats> results = StationOrder.newSortedMap();
+        aggregate(input, options, table -> table.mergeInto(results));
+        return results;
+    }
+
+    @Override
+    public void writeSnapshot(Path input, EngineOptions options, Path snapshot) throws IOException {
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        aggregate(input, options, table -> table.writeTo(writer));
+        writer.write(snapshot);
+    }
+
+    /**
+     * Aggregates the file and hands the merged table to the given consumer, before its memory is released.
+     */
+    private void aggregate(Path input, EngineOptions options, Consumer<OffHeapStationTable> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+            long size = channel.size();
+            EngineMetrics.StageEvent map = EngineMetrics.begin(EngineMetrics.Stage.MAP);
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            EngineMetrics.end(map, 0);
+            SegmentScheduler scheduler = SegmentScheduler.of(0, size, options);
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            OffHeapStationTable[] tables = new OffHeapStationTable[scheduler.workers()];
+            Thread[] threads = new Thread[tables.length];
+
+            for (int i = 0; i < threads.length; i++) {
+                OffHeapStationTable table = tables[i] = new OffHeapStationTable();
+                threads[i] = new Thread(() -> {
+                    try {
+                        for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
+                            EngineMetrics.StageEvent parse = EngineMetrics.begin(EngineMetrics.Stage.PARSE);
+                            aggregateSegment(file, segment.start(), segment.end(), table, options.stationHash());
+                            EngineMetrics.end(parse, segment.size());
+                        }
+                        table.recordMetrics();
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "aggregator-" + i);
+                threads[i].start();
+            }
+
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                if (failure.get() != null) {
+                    throw new IOException("Aggregation failed", failure.get());
+                }
+
+                EngineMetrics.StageEvent merge = EngineMetrics.begin(EngineMetrics.Stage.MERGE);
+                for (int i = 1; i < tables.length; i++) {
+                    tables[i].mergeInto(tables[0]);
+                }
+                EngineMetrics.end(merge, 0);
+
+                EngineMetrics.StageEvent sort = EngineMetrics.begin(EngineMetrics.Stage.SORT);
+                consumer.accept(tables[0]);
+                EngineMetrics.end(sort, 0);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while aggregating", e);
+            }
+            finally {
+                for (OffHeapStationTable table : tables) {
+                    table.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Aggregates the lines starting within {@code (start, end]}, or {@code [0, end]} for the first segment, like
+     * {@link MappedEngine} does. Names are hashed with the given {@link StationHash} unless it is {@code null}.
+     */
+    void aggregateSegment(MemorySegment file, long start, long end, OffHeapStationTable table, StationHash stationHash) {
+        long offset = start > 0 ? nextLineStart(file, start) : 0;
+        long limit = Math.min(end, file.byteSize() - 1);
+        while (offset <= limit) {
+            long nameOffset = offset;
+            int hash = 0;
+            for (byte b; (b = file.get(ValueLayout.JAVA_BYTE, offset)) != ';'; offset++) {
+                hash = 31 * hash + b;
+            }
+            int length = (int) (offset++ - nameOffset);
+            if (stationHash != null) {
+                hash = stationHash.hash(file, nameOffset, length);
+            }
+
+            long word = temperatureWord(file, offset);
+            offset += TemperatureDecoder.length(word);
+            if (offset < file.byteSize() && file.get(ValueLayout.JAVA_BYTE, offset) == '\r') {
+                offset++;
+            }
+            offset++;
+
+            table.add(file, nameOffset, length, hash, TemperatureDecoder.decode(word));
+        }
+    }
+
+    /**
+     * Reads the word for the {@link TemperatureDecoder} starting at {@code offset}, padded with zeros at the end of the file.
+     */
+    static long temperatureWord(MemorySegment file, long offset) {
+        if (offset + Long.BYTES <= file.byteSize()) {
+            return file.get(LITTLE_ENDIAN_LONG, offset);
+        }
+
+        long word = 0;
+        for (long i = file.byteSize() - 1; i >= offset; i--) {
+            word = (word << 8) | (file.get(ValueLayout.JAVA_BYTE, i) & 0xFF);
+        }
+        return word;
+    }
+
+    /**
+     * Returns the position right after the first line break at or after {@code position}, or the end of the file.
+     */
+    static long nextLineStart(MemorySegment file, long position) {
+        while (position < file.byteSize() && file.get(ValueLayout.JAVA_BYTE, position++) != '\n') {
+            // continue
+        }
+        return position;
+    }
+}
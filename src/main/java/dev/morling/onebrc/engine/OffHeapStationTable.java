@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Linear probing hash table from station name bytes to statistics, laid out flat in off-heap memory. Each slot takes two
+ * cache lines and holds everything about one station inline:
+ *
+ * <pre>
+ * 0   long  sum
+ * 8   long  count
+ * 16  int   hash
+ * 20  short min
+ * 22  short max
+ * 24  short name length, 0 for an empty slot
+ * 28  byte[100] name
+ * </pre>
+ *
+ * A lookup thus reads the slot it probes and nothing else, and the table creates no garbage at all. Temperatures must fit
+ * into a {@code short}, which holds for the -99.9 to 99.9 range of the challenge, and names must have 1 to
+ * {@link #MAX_NAME_LENGTH} bytes. Used by one thread at a time; the memory is released by {@link #close()}.
+ */
+final class OffHeapStationTable implements AutoCloseable {
+
+    static final int MAX_NAME_LENGTH = 100;
+
+    private static final long SLOT_SIZE = 128;
+    private static final long SUM = 0;
+    private static final long COUNT = 8;
+    private static final long HASH = 16;
+    private static final long MIN = 20;
+    private static final long MAX = 22;
+    private static final long LENGTH = 24;
+    private static final long NAME = 28;
+
+    private static final int GROW_FACTOR = 4;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private Arena arena;
+    private MemorySegment slots;
+    private int capacity;
+    private int limit;
+    private int size;
+    private long lookups;
+    private long probes;
+
+    OffHeapStationTable() {
+        this(1024);
+    }
+
+    OffHeapStationTable(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a measurement for the station whose name is at {@code [offset, offset + length)} of {@code source}.
+     */
+    void add(MemorySegment source, long offset, int length, int hash, int temperature) {
+        long slot = find(source, offset, length, hash);
+        slots.set(ValueLayout.JAVA_LONG, slot + SUM, slots.get(ValueLayout.JAVA_LONG, slot + SUM) + temperature);
+        slots.set(ValueLayout.JAVA_LONG, slot + COUNT, slots.get(ValueLayout.JAVA_LONG, slot + COUNT) + 1);
+        slots.set(ValueLayout.JAVA_SHORT, slot + MIN, (short) Math.min(slots.get(ValueLayout.JAVA_SHORT, slot + MIN), temperature));
+        slots.set(ValueLayout.JAVA_SHORT, slot + MAX, (short) Math.max(slots.get(ValueLayout.JAVA_SHORT, slot + MAX), temperature));
+    }
+
+    void merge(MemorySegment source, long offset, int length, int hash, int min, int max, long sum, long count) {
+        long slot = find(source, offset, length, hash);
+        slots.set(ValueLayout.JAVA_LONG, slot + SUM, slots.get(ValueLayout.JAVA_LONG, slot + SUM) + sum);
+        slots.set(ValueLayout.JAVA_LONG, slot + COUNT, slots.get(ValueLayout.JAVA_LONG, slot + COUNT) + count);
+        slots.set(ValueLayout.JAVA_SHORT, slot + MIN, (short) Math.min(slots.get(ValueLayout.JAVA_SHORT, slot + MIN), min));
+        slots.set(ValueLayout.JAVA_SHORT, slot + MAX, (short) Math.max(slots.get(ValueLayout.JAVA_SHORT, slot + MAX), max));
+    }
+
+    void mergeInto(OffHeapStationTable target) {
+        for (long slot = 0; slot < slots.byteSize(); slot += SLOT_SIZE) {
+            int length = slots.get(ValueLayout.JAVA_SHORT, slot + LENGTH);
+            if (length != 0) {
+                target.merge(slots, slot + NAME, length, slots.get(ValueLayout.JAVA_INT, slot + HASH),
+                        slots.get(ValueLayout.JAVA_SHORT, slot + MIN), slots.get(ValueLayout.JAVA_SHORT, slot + MAX),
+                        slots.get(ValueLayout.JAVA_LONG, slot + SUM), slots.get(ValueLayout.JAVA_LONG, slot + COUNT));
+            }
+        }
+    }
+
+    void mergeInto(Map<String, StationStats> target) {
+        for (long slot = 0; slot < slots.byteSize(); slot += SLOT_SIZE) {
+            int length = slots.get(ValueLayout.JAVA_SHORT, slot + LENGTH);
+            if (length != 0) {
+                target.merge(new String(name(slot, length), StandardCharsets.UTF_8), stats(slot), StationStats::merge);
+            }
+        }
+    }
+
+    void writeTo(ResultSnapshot.Writer writer) {
+        for (long slot = 0; slot < slots.byteSize(); slot += SLOT_SIZE) {
+            int length = slots.get(ValueLayout.JAVA_SHORT, slot + LENGTH);
+            if (length != 0) {
+                writer.add(name(slot, length), 0, length, slots.get(ValueLayout.JAVA_SHORT, slot + MIN), slots.get(ValueLayout.JAVA_SHORT, slot + MAX),
+                        slots.get(ValueLayout.JAVA_LONG, slot + SUM), slots.get(ValueLayout.JAVA_LONG, slot + COUNT));
+            }
+        }
+    }
+
+    /**
+     * Adds the lookups and probes since the last call to the {@link EngineMetrics} of the current thread.
+     */
+    void recordMetrics() {
+        EngineMetrics.lookups(lookups, probes);
+        lookups = 0;
+        probes = 0;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    /**
+     * Returns the slot of the given station, adding the station if it isn't present yet.
+     */
+    private long find(MemorySegment source, long offset, int length, int hash) {
+        int mask = capacity - 1;
+        int index = hash & mask;
+        if (EngineMetrics.ENABLED) {
+            lookups++;
+        }
+
+        while (true) {
+            if (EngineMetrics.ENABLED) {
+                probes++;
+            }
+            long slot = index * SLOT_SIZE;
+            int candidateLength = slots.get(ValueLayout.JAVA_SHORT, slot + LENGTH);
+
+            if (candidateLength == 0) {
+                if (length < 1 || length > MAX_NAME_LENGTH) {
+                    throw new IllegalArgumentException("Station names must have 1 to " + MAX_NAME_LENGTH + " bytes, but got " + length);
+                }
+                MemorySegment.copy(source, offset, slots, slot + NAME, length);
+                slots.set(ValueLayout.JAVA_INT, slot + HASH, hash);
+                slots.set(ValueLayout.JAVA_SHORT, slot + LENGTH, (short) length);
+                slots.set(ValueLayout.JAVA_SHORT, slot + MIN, Short.MAX_VALUE);
+                slots.set(ValueLayout.JAVA_SHORT, slot + MAX, Short.MIN_VALUE);
+                if (++size >= limit) {
+                    grow();
+                    if (EngineMetrics.ENABLED) {
+                        lookups--;
+                    }
+                    return find(source, offset, length, hash);
+                }
+                return slot;
+            }
+
+            if (candidateLength == length && slots.get(ValueLayout.JAVA_INT, slot + HASH) == hash
+                    && MemorySegment.mismatch(slots, slot + NAME, slot + NAME + length, source, offset, offset + length) < 0) {
+                return slot;
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private byte[] name(long slot, int length) {
+        return slots.asSlice(slot + NAME, length).toArray(ValueLayout.JAVA_BYTE);
+    }
+
+    private StationStats stats(long slot) {
+        return new StationStats(slots.get(ValueLayout.JAVA_SHORT, slot + MIN), slots.get(ValueLayout.JAVA_SHORT, slot + MAX),
+                slots.get(ValueLayout.JAVA_LONG, slot + SUM), slots.get(ValueLayout.JAVA_LONG, slot + COUNT));
+    }
+
+    private void grow() {
+        Arena oldArena = arena;
+        MemorySegment oldSlots = slots;
+
+        allocate(capacity * GROW_FACTOR);
+        EngineMetrics.resized("OffHeapStationTable", capacity / GROW_FACTOR, capacity);
+
+        int mask = capacity - 1;
+        for (long oldSlot = 0; oldSlot < oldSlots.byteSize(); oldSlot += SLOT_SIZE) {
+            if (oldSlots.get(ValueLayout.JAVA_SHORT, oldSlot + LENGTH) != 0) {
+                int index = oldSlots.get(ValueLayout.JAVA_INT, oldSlot + HASH) & mask;
+                while (slots.get(ValueLayout.JAVA_SHORT, index * SLOT_SIZE + LENGTH) != 0) {
+                    index = (index + 1) & mask;
+                }
+                MemorySegment.copy(oldSlots, oldSlot, slots, index * SLOT_SIZE, SLOT_SIZE);
+            }
+        }
+
+        oldArena.close();
+    }
+
+    private void allocate(int capacity) {
+        // shared, as the tables of all workers are merged by the thread which started them
+        arena = Arena.ofShared();
+        slots = arena.allocate(capacity * SLOT_SIZE, 64);
+        this.capacity = capacity;
+        limit = (int) (capacity * LOAD_FACTOR);
+    }
+}
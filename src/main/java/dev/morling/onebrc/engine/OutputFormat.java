@@ -0,0 +1,28 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Formats in which {@link RunEngine} writes results.
+ */
+public enum OutputFormat {
+    /** The map of all stations on one line, as printed by the forks. */
+    TEXT,
+    /** One {@code station=min/mean/max} line per station. */
+    LINES,
+    /** A binary {@link ResultSnapshot}. */
+    SNAPSHOT
+}
@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges the station tables of the worker threads into one result sorted in {@link StationOrder}, in parallel. The
+ * stations are partitioned into ranges by the first two bytes of their UTF-8 encoded name, their prefix, so that each
+ * range holds about the same number of stations. Each range is merged and sorted on its own thread, comparing the name
+ * bytes without decoding them, and only then are its names decoded, still on that thread. As the order of the prefixes
+ * is the order of the names, and no name is in two ranges, the sorted ranges in a row are the sorted result: the
+ * {@link TreeMap} is built from them in linear time, without comparing any names again.
+ */
+final class RangeMerger {
+
+    static final int PREFIXES = 1 << 16;
+
+    /**
+     * Fewest stations (counted once per table) worth a thread of their own.
+     */
+    private static final int MIN_RANGE_STATIONS = 2048;
+
+    private record Range(String[] names, StationStats[] stats) {
+    }
+
+    private RangeMerger() {
+    }
+
+    /**
+     * Returns the prefix of the name: its first two bytes as unsigned big-endian number, padded with zeros.
+     */
+    static int prefix(byte[] name) {
+        int first = name.length > 0 ? name[0] & 0xFF : 0;
+        int second = name.length > 1 ? name[1] & 0xFF : 0;
+        return first << 8 | second;
+    }
+
+    /**
+     * Merges the tables into a sorted result, using up to {@code parallelism} threads.
+     */
+    static SortedMap<String, StationStats> merge(StationTable[] tables, int parallelism) {
+        EngineMetrics.StageEvent merge = EngineMetrics.begin(EngineMetrics.Stage.MERGE);
+        int[] counts = new int[PREFIXES];
+        int total = 0;
+        for (StationTable table : tables) {
+            table.countPrefixes(counts);
+            total += table.size();
+        }
+        int[] bounds = bounds(counts, total, Math.max(1, Math.min(parallelism, total / MIN_RANGE_STATIONS)));
+
+        Range[] ranges = new Range[bounds.length - 1];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[ranges.length - 1];
+        for (int i = 0; i < threads.length; i++) {
+            int range = i + 1;
+            threads[i] = new Thread(() -> {
+                try {
+                    ranges[range] = mergeRange(tables, bounds[range], bounds[range + 1]);
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "merger-" + range);
+            threads[i].start();
+        }
+        ranges[0] = mergeRange(tables, bounds[0], bounds[1]);
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging", e);
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Merge failed", failure.get());
+        }
+        EngineMetrics.end(merge, 0);
+
+        EngineMetrics.StageEvent sort = EngineMetrics.begin(EngineMetrics.Stage.SORT);
+        SortedMap<String, StationStats> results = new TreeMap<>(new SortedRanges(ranges));
+        EngineMetrics.end(sort, 0);
+        return results;
+    }
+
+    /**
+     * Splits the prefixes into the given number of ranges with about the same number of stations each, returning the
+     * first prefix of each range followed by the end of the last one.
+     */
+    static int[] bounds(int[] counts, int total, int ranges) {
+        int[] bounds = new int[ranges + 1];
+        Arrays.fill(bounds, 1, bounds.length, PREFIXES);
+        long seen = 0;
+        int range = 1;
+        for (int prefix = 0; prefix < PREFIXES && range < ranges; prefix++) {
+            seen += counts[prefix];
+            while (range < ranges && seen * ranges >= (long) total * range) {
+                bounds[range++] = prefix + 1;
+            }
+        }
+        return bounds;
+    }
+
+    private static Range mergeRange(StationTable[] tables, int fromPrefix, int toPrefix) {
+        StationTable merged = new StationTable(tables[0].histograms());
+        for (StationTable table : tables) {
+            table.mergeInto(merged, fromPrefix, toPrefix);
+        }
+
+        byte[][] names = new byte[merged.size()][];
+        StationStats[] stats = new StationStats[names.length];
+        merged.copyTo(names, stats);
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+
+        String[] sortedNames = new String[names.length];
+        StationStats[] sortedStats = new StationStats[names.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = new String(names[order[i]], StandardCharsets.UTF_8);
+            sortedStats[i] = stats[order[i]];
+        }
+        return new Range(sortedNames, sortedStats);
+    }
+
+    /**
+     * The sorted ranges one after the other, as a sorted map for {@link TreeMap#TreeMap(SortedMap)}, which only iterates
+     * over the entries and trusts their order. Views of parts of it are not supported.
+     */
+    private static final class SortedRanges extends AbstractMap<String, StationStats> implements SortedMap<String, StationStats> {
+
+        private final Range[] ranges;
+        private final int size;
+
+        SortedRanges(Range[] ranges) {
+            this.ranges = ranges;
+            int size = 0;
+            for (Range range : ranges) {
+                size += range.names().length;
+            }
+            this.size = size;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return StationOrder.COMPARATOR;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String, StationStats>> entrySet() {
+            return new AbstractSet<>() {
+
+                @Override
+                public Iterator<Map.Entry<String, StationStats>> iterator() {
+                    return new Iterator<>() {
+
+                        private int range;
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            while (range < ranges.length && index == ranges[range].names().length) {
+                                range++;
+                                index = 0;
+                            }
+                            return range < ranges.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, StationStats> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Range current = ranges[range];
+                            return Map.entry(current.names()[index], current.stats()[index++]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        @Override
+        public String firstKey() {
+            return entrySet().iterator().next().getKey();
+        }
+
+        @Override
+        public String lastKey() {
+            for (int i = ranges.length - 1; i >= 0; i--) {
+                String[] names = ranges[i].names();
+                if (names.length > 0) {
+                    return names[names.length - 1];
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public SortedMap<String, StationStats> subMap(String fromKey, String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, StationStats> headMap(String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, StationStats> tailMap(String fromKey) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The one place where results are rounded and formatted, so that all engines produce byte-identical output. Values stay
+ * integers in tenths of a degree throughout: the mean is rounded half up (towards positive infinity, like
+ * {@link Math#round(double)} in the baseline) from the integer sum and count, without going through {@code double}, and
+ * the result is written as UTF-8 straight into a byte buffer, which is reused and only grows, instead of concatenating a
+ * {@code String} per station.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class ResultFormatter {
+
+    /**
+     * Longest formatted value of a {@code long}, for the stats of a station without measurements.
+     */
+    private static final int MAX_VALUE_LENGTH = 21;
+
+    /**
+     * Longest formatted stats, including percentiles: {@code min/mean/max p50=v p95=v p99=v}.
+     */
+    private static final int MAX_STATS_LENGTH = 6 * MAX_VALUE_LENGTH + 2 + 3 * 5;
+
+    private static final byte[] P50 = " p50=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] P95 = " p95=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] P99 = " p99=".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer;
+    private int position;
+
+    public ResultFormatter() {
+        this(64 * 1024);
+    }
+
+    public ResultFormatter(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Returns {@code sum / count} rounded half up, for values in tenths of a degree.
+     */
+    public static long mean(long sum, long count) {
+        return Math.floorDiv(2 * sum + count, 2 * count);
+    }
+
+    /**
+     * Appends the results in the format of the challenge, {@code {a=min/mean/max, b=min/mean/max}}, and a line break.
+     */
+    public ResultFormatter text(SortedMap<String, StationStats> results) {
+        ensureCapacity(1);
+        buffer[position++] = '{';
+        boolean first = true;
+        for (Map.Entry<String, StationStats> entry : results.entrySet()) {
+            if (!first) {
+                ensureCapacity(2);
+                buffer[position++] = ',';
+                buffer[position++] = ' ';
+            }
+            first = false;
+            entry(entry.getKey(), entry.getValue());
+        }
+        ensureCapacity(2);
+        buffer[position++] = '}';
+        buffer[position++] = '\n';
+        return this;
+    }
+
+    /**
+     * Appends one {@code name=min/mean/max} line per station.
+     */
+    public ResultFormatter lines(SortedMap<String, StationStats> results) {
+        for (Map.Entry<String, StationStats> entry : results.entrySet()) {
+            entry(entry.getKey(), entry.getValue());
+            ensureCapacity(1);
+            buffer[position++] = '\n';
+        }
+        return this;
+    }
+
+    /**
+     * Appends the given line, e.g. a header, and a line break.
+     */
+    public ResultFormatter line(String line) {
+        string(line);
+        ensureCapacity(1);
+        buffer[position++] = '\n';
+        return this;
+    }
+
+    /**
+     * Appends {@code min/mean/max} of the stats, followed by the percentiles if they have a histogram.
+     */
+    public ResultFormatter stats(StationStats stats) {
+        ensureCapacity(MAX_STATS_LENGTH);
+        position = tenths(stats.min, buffer, position);
+        buffer[position++] = '/';
+        position = tenths(stats.count > 0 ? mean(stats.sum, stats.count) : 0, buffer, position);
+        buffer[position++] = '/';
+        position = tenths(stats.max, buffer, position);
+
+        TemperatureHistogram histogram = stats.histogram;
+        if (histogram != null && stats.count > 0) {
+            position = percentile(P50, histogram.median());
+            position = percentile(P95, histogram.percentile(95));
+            position = percentile(P99, histogram.percentile(99));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the value in tenths of a degree with one decimal, e.g. {@code -12.3}, returning the offset after it.
+     */
+    public static int tenths(long value, byte[] buffer, int offset) {
+        if (value < 0) {
+            buffer[offset++] = '-';
+            value = -value;
+        }
+        long integral = value / 10;
+        if (integral >= 10) {
+            offset = digits(integral, buffer, offset);
+        }
+        else {
+            buffer[offset++] = (byte) ('0' + integral);
+        }
+        buffer[offset++] = '.';
+        buffer[offset++] = (byte) ('0' + value % 10);
+        return offset;
+    }
+
+    /**
+     * Writes the formatted bytes to the stream and clears the buffer, keeping its capacity.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    public int size() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, position, StandardCharsets.UTF_8);
+    }
+
+    private void entry(String name, StationStats stats) {
+        string(name);
+        ensureCapacity(1);
+        buffer[position++] = '=';
+        stats(stats);
+    }
+
+    private int percentile(byte[] label, int value) {
+        System.arraycopy(label, 0, buffer, position, label.length);
+        return tenths(value, buffer, position + label.length);
+    }
+
+    /**
+     * Encodes the string as UTF-8 without allocating, unlike {@link String#getBytes}.
+     */
+    private void string(String value) {
+        ensureCapacity(3 * value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            }
+            else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            }
+            else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private static int digits(long value, byte[] buffer, int offset) {
+        int length = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, position + length));
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Binary, columnar form of aggregated station statistics, which can be memory-mapped and read without any parsing.
+ * <p>
+ * All values are little-endian, every column is naturally aligned:
+ *
+ * <pre>
+ * header       int magic, int version, int stationCount, int reserved, long namesLength
+ * sum          long[stationCount]
+ * count        long[stationCount]
+ * min          int[stationCount]
+ * max          int[stationCount]
+ * nameOffsets  int[stationCount + 1], offsets of the names within the names block
+ * names        UTF-8 bytes of all station names, back to back
+ * </pre>
+ *
+ * Stations are ordered by their UTF-8 bytes, i.e. by code point. Temperatures are in tenths of a degree, as in
+ * {@link StationStats}.
+ */
+public final class ResultSnapshot {
+
+    static final int MAGIC = 0x53524231; // "1BRS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int countOffset;
+    private final int minOffset;
+    private final int maxOffset;
+    private final int nameOffsetsOffset;
+    private final int namesOffset;
+
+    private ResultSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a result snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported result snapshot version " + buffer.getInt(4));
+        }
+
+        size = buffer.getInt(8);
+        if (size < 0 || size > (buffer.limit() - HEADER_SIZE) / 28) { // 28 bytes of columns per station
+            throw new IOException("Truncated result snapshot");
+        }
+        countOffset = HEADER_SIZE + 8 * size;
+        minOffset = countOffset + 8 * size;
+        maxOffset = minOffset + 4 * size;
+        nameOffsetsOffset = maxOffset + 4 * size;
+        namesOffset = nameOffsetsOffset + 4 * (size + 1);
+
+        if ((long) namesOffset + buffer.getLong(16) != buffer.limit()) {
+            throw new IOException("Truncated result snapshot");
+        }
+        for (int i = 0, previous = 0; i <= size; i++) {
+            int offset = nameOffset(i);
+            if (offset < previous || (i == 0 && offset != 0) || (i == size && offset != buffer.getLong(16))) {
+                throw new IOException("Corrupt result snapshot: invalid offset of name " + i);
+            }
+            previous = offset;
+        }
+    }
+
+    /**
+     * Memory-maps the given snapshot file.
+     */
+    public static ResultSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ResultSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static ResultSnapshot wrap(ByteBuffer buffer) throws IOException {
+        return new ResultSnapshot(buffer.slice());
+    }
+
+    public static void write(Map<String, StationStats> stats, Path file) throws IOException {
+        Writer writer = new Writer();
+        stats.forEach(writer::add);
+        writer.write(file);
+    }
+
+    /**
+     * Merges several snapshots, e.g. of different files or shards, into one, working on the station bytes only.
+     */
+    public static void merge(Iterable<ResultSnapshot> snapshots, Path file) throws IOException {
+        Writer writer = new Writer();
+        for (ResultSnapshot snapshot : snapshots) {
+            snapshot.writeTo(writer);
+        }
+        writer.write(file);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String station(int index) {
+        int start = nameOffset(index);
+        byte[] name = new byte[nameOffset(index + 1) - start];
+        buffer.get(namesOffset + start, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    public long sum(int index) {
+        return buffer.getLong(HEADER_SIZE + 8 * index);
+    }
+
+    public long count(int index) {
+        return buffer.getLong(countOffset + 8 * index);
+    }
+
+    public int min(int index) {
+        return buffer.getInt(minOffset + 4 * index);
+    }
+
+    public int max(int index) {
+        return buffer.getInt(maxOffset + 4 * index);
+    }
+
+    public StationStats stats(int index) {
+        return new StationStats(min(index), max(index), sum(index), count(index));
+    }
+
+    /**
+     * Returns the index of the given station, or a negative value if it isn't contained.
+     */
+    public int indexOf(String station) {
+        byte[] name = station.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public SortedMap<String, StationStats> toSortedMap() {
+        SortedMap<String, StationStats> results = StationOrder.newSortedMap();
+        for (int i = 0; i < size; i++) {
+            results.put(station(i), stats(i));
+        }
+        return results;
+    }
+
+    public void writeTo(Writer writer) {
+        for (int i = 0; i < size; i++) {
+            int start = nameOffset(i);
+            byte[] name = new byte[nameOffset(i + 1) - start];
+            buffer.get(namesOffset + start, name);
+            writer.add(name, 0, name.length, min(i), max(i), sum(i), count(i));
+        }
+    }
+
+    private int nameOffset(int index) {
+        return buffer.getInt(nameOffsetsOffset + 4 * index);
+    }
+
+    private int compareName(int index, byte[] name) {
+        int start = namesOffset + nameOffset(index);
+        int length = namesOffset + nameOffset(index + 1) - start;
+        int limit = Math.min(length, name.length);
+        for (int i = 0; i < limit; i++) {
+            int cmp = Byte.compareUnsigned(buffer.get(start + i), name[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Collects station statistics in any order, e.g. straight from the hash tables of an engine, and writes them as a
+     * snapshot. Entries of the same station are merged.
+     */
+    public static final class Writer {
+
+        private byte[][] names = new byte[1024][];
+        private int[] mins = new int[1024];
+        private int[] maxs = new int[1024];
+        private long[] sums = new long[1024];
+        private long[] counts = new long[1024];
+        private int size;
+
+        public void add(String station, StationStats stats) {
+            byte[] name = station.getBytes(StandardCharsets.UTF_8);
+            add(name, 0, name.length, stats.min, stats.max, stats.sum, stats.count);
+        }
+
+        public void add(byte[] name, int offset, int length, int min, int max, long sum, long count) {
+            if (size == names.length) {
+                int capacity = size * 2;
+                names = Arrays.copyOf(names, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            names[size] = Arrays.copyOfRange(name, offset, offset + length);
+            mins[size] = min;
+            maxs[size] = max;
+            sums[size] = sum;
+            counts[size] = count;
+            size++;
+        }
+
+        public ByteBuffer toByteBuffer() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+
+            // merge entries of the same station
+            byte[][] stationNames = new byte[size][];
+            int[] stationMins = new int[size];
+            int[] stationMaxs = new int[size];
+            long[] stationSums = new long[size];
+            long[] stationCounts = new long[size];
+            int stations = 0;
+            long namesLength = 0;
+            for (int i = 0; i < size; i++) {
+                int current = order[i];
+                if (stations > 0 && Arrays.equals(stationNames[stations - 1], names[current])) {
+                    int target = stations - 1;
+                    stationMins[target] = Math.min(stationMins[target], mins[current]);
+                    stationMaxs[target] = Math.max(stationMaxs[target], maxs[current]);
+                    stationSums[target] += sums[current];
+                    stationCounts[target] += counts[current];
+                }
+                else {
+                    stationNames[stations] = names[current];
+                    stationMins[stations] = mins[current];
+                    stationMaxs[stations] = maxs[current];
+                    stationSums[stations] = sums[current];
+                    stationCounts[stations] = counts[current];
+                    namesLength += names[current].length;
+                    stations++;
+                }
+            }
+
+            long total = HEADER_SIZE + 24L * stations + 4L * (stations + 1) + namesLength;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Result snapshot too large: " + total + " bytes");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(stations).putInt(0).putLong(namesLength);
+            for (int i = 0; i < stations; i++) {
+                buffer.putLong(stationSums[i]);
+            }
+            for (int i = 0; i < stations; i++) {
+                buffer.putLong(stationCounts[i]);
+            }
+            for (int i = 0; i < stations; i++) {
+                buffer.putInt(stationMins[i]);
+            }
+            for (int i = 0; i < stations; i++) {
+                buffer.putInt(stationMaxs[i]);
+            }
+            int nameOffset = 0;
+            for (int i = 0; i < stations; i++) {
+                buffer.putInt(nameOffset);
+                nameOffset += stationNames[i].length;
+            }
+            buffer.putInt(nameOffset);
+            for (int i = 0; i < stations; i++) {
+                buffer.put(stationNames[i]);
+            }
+            return buffer.flip();
+        }
+
+        /**
+         * Writes the snapshot, replacing the given file atomically.
+         */
+        public void write(Path file) throws IOException {
+            ByteBuffer buffer = toByteBuffer();
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Runs any registered engine on measurement files, so that all engines can be timed by the same harness. See
+ * {@link RunOptions#USAGE} for the command line; the same runs can be started programmatically with
+ * {@link #run(RunOptions)}, also concurrently, as each run gets its own engine instance. Passing {@code --list} prints the
+ * available engine names. With {@code -Donebrc.metrics=true}, the {@link EngineMetrics} are printed to stderr at the end.
+ */
+public class RunEngine {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].equals("--list")) {
+            Engines.names().forEach(System.out::println);
+            return;
+        }
+
+        RunOptions options;
+        try {
+            options = RunOptions.parse(args);
+            engine(options);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(RunOptions.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        run(options);
+
+        if (EngineMetrics.ENABLED) {
+            System.err.println(EngineMetrics.summary());
+        }
+    }
+
+    /**
+     * Aggregates the inputs and writes the result as configured.
+     */
+    public static void run(RunOptions options) throws IOException {
+        options = options.withInputs(expand(options.inputs()));
+        if (options.perFile()) {
+            runPerFile(options);
+            return;
+        }
+
+        // a single file written as snapshot can skip the sorted map
+        if (options.format() == OutputFormat.SNAPSHOT && options.output() != null && options.inputs().size() == 1
+                && !options.inputs().get(0).equals(RunOptions.STDIN)) {
+            AggregationEngine engine = engine(options);
+            engine.writeSnapshot(options.inputs().get(0), options.engineOptions(), options.output());
+            return;
+        }
+
+        SortedMap<String, StationStats> results = aggregate(options);
+        EngineMetrics.StageEvent print = EngineMetrics.begin(EngineMetrics.Stage.PRINT);
+        write(results, options.format(), options.output());
+        EngineMetrics.end(print, 0);
+    }
+
+    /**
+     * Writes one result per input: snapshots into the output directory, named after the input file, and text or lines
+     * one after the other, each preceded by a {@code # <input>} line.
+     */
+    private static void runPerFile(RunOptions options) throws IOException {
+        Map<Path, SortedMap<String, StationStats>> results = aggregateEach(options);
+        EngineMetrics.StageEvent print = EngineMetrics.begin(EngineMetrics.Stage.PRINT);
+        if (options.format() == OutputFormat.SNAPSHOT) {
+            Files.createDirectories(options.output());
+            for (Map.Entry<Path, SortedMap<String, StationStats>> entry : results.entrySet()) {
+                ResultSnapshot.write(entry.getValue(), options.output().resolve(entry.getKey().getFileName() + ".snapshot"));
+            }
+        }
+        else if (options.output() == null) {
+            writeEach(results, options.format(), System.out);
+            System.out.flush();
+        }
+        else {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(options.output()))) {
+                writeEach(results, options.format(), out);
+            }
+        }
+        EngineMetrics.end(print, 0);
+    }
+
+    /**
+     * Aggregates the measurements of all inputs into one result. Several files are handed to the engine at once, so that
+     * it can aggregate them with one set of worker threads.
+     */
+    public static SortedMap<String, StationStats> aggregate(RunOptions options) throws IOException {
+        AggregationEngine engine = engine(options);
+        List<Path> inputs = expand(options.inputs());
+        if (inputs.size() == 1) {
+            return aggregate(engine, inputs.get(0), options.engineOptions());
+        }
+        return StationOrder.sorted(engine.aggregate(inputs, options.engineOptions()));
+    }
+
+    /**
+     * Aggregates each input separately, returning the results in the order of the inputs.
+     */
+    public static Map<Path, SortedMap<String, StationStats>> aggregateEach(RunOptions options) throws IOException {
+        AggregationEngine engine = engine(options);
+        List<Path> inputs = expand(options.inputs());
+        if (inputs.size() == 1) {
+            return Map.of(inputs.get(0), aggregate(engine, inputs.get(0), options.engineOptions()));
+        }
+        Map<Path, SortedMap<String, StationStats>> results = new LinkedHashMap<>();
+        engine.aggregateEach(inputs, options.engineOptions()).forEach((input, result) -> results.put(input, StationOrder.sorted(result)));
+        return results;
+    }
+
+    /**
+     * Returns a new instance of the engine of the run.
+     *
+     * @throws IllegalArgumentException if the engine is unknown, or percentiles are requested but the engine can't keep
+     *             histograms for the inputs
+     */
+    private static AggregationEngine engine(RunOptions options) {
+        AggregationEngine engine = Engines.byName(options.engine());
+        boolean stream = options.inputs().contains(RunOptions.STDIN);
+        if (options.engineOptions().histograms() && !engine.supportsHistograms(stream)) {
+            throw new IllegalArgumentException("Engine '" + engine.name() + "' does not support --statistics percentiles"
+                    + (!stream && engine.supportsHistograms(true) ? " for files, only on stdin" : ""));
+        }
+        return engine;
+    }
+
+    private static List<Path> expand(List<Path> inputs) throws IOException {
+        if (inputs.contains(RunOptions.STDIN)) {
+            return inputs;
+        }
+        List<Path> files = BatchAggregator.expand(inputs);
+        if (files.isEmpty()) {
+            throw new IOException("No files found for " + inputs);
+        }
+        return files;
+    }
+
+    private static SortedMap<String, StationStats> aggregate(AggregationEngine engine, Path input, EngineOptions options) throws IOException {
+        if (input.equals(RunOptions.STDIN)) {
+            try (FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+                return StationOrder.sorted(engine.aggregate(in, options));
+            }
+        }
+        return StationOrder.sorted(engine.aggregate(input, options));
+    }
+
+    /**
+     * Writes the result in the given format to the file, or to stdout if it is {@code null}.
+     */
+    public static void write(SortedMap<String, StationStats> results, OutputFormat format, Path output) throws IOException {
+        if (format == OutputFormat.SNAPSHOT && output != null) {
+            ResultSnapshot.write(results, output);
+            return;
+        }
+
+        if (output == null) {
+            write(results, format, System.out, new ResultFormatter());
+            System.out.flush();
+        }
+        else {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+                write(results, format, out, new ResultFormatter());
+            }
+        }
+    }
+
+    private static void writeEach(Map<Path, SortedMap<String, StationStats>> results, OutputFormat format, OutputStream out) throws IOException {
+        ResultFormatter formatter = new ResultFormatter();
+        for (Map.Entry<Path, SortedMap<String, StationStats>> entry : results.entrySet()) {
+            formatter.line("# " + entry.getKey()).writeTo(out);
+            write(entry.getValue(), format, out, formatter);
+        }
+    }
+
+    private static void write(SortedMap<String, StationStats> results, OutputFormat format, OutputStream out, ResultFormatter formatter) throws IOException {
+        switch (format) {
+            case TEXT -> formatter.text(results).writeTo(out);
+            case LINES -> formatter.lines(results).writeTo(out);
+            case SNAPSHOT -> {
+                ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+                results.forEach(writer::add);
+                ByteBuffer buffer = writer.toByteBuffer();
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+            }
+        }
+    }
+}
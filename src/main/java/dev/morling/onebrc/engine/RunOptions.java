@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Everything a run of {@link RunEngine} needs: the engine, the input files, the {@link EngineOptions}, and the format
+ * and destination of the result. Nothing is read from fixed paths or global state, so several runs with different
+ * options can be executed side by side, also within one JVM.
+ *
+ * @param engine name of the engine, see {@link Engines#names()}
+ * @param inputs the measurement files, or {@link #STDIN} for stdin; directories and glob patterns in file names are
+ *            expanded to the files they contain or match
+ * @param engineOptions the options handed to the engine
+ * @param format the format of the result
+ * @param output the file to write the result to, or {@code null} for stdout; the directory to write one snapshot per
+ *            input to for per-file snapshots
+ * @param perFile whether to produce one result per input file instead of one result for all of them
+ */
+public record RunOptions(String engine, List<Path> inputs, EngineOptions engineOptions, OutputFormat format, Path output, boolean perFile) {
+
+    public static final Path DEFAULT_INPUT = Path.of("./measurements.txt");
+    public static final Path STDIN = Path.of("-");
+
+    public static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: RunEngine [options] <engine> [<file>...]",
+            "       RunEngine --list",
+            "",
+            "Files default to ./measurements.txt, - reads from stdin; directories and globs (e.g. 'data/*.txt') are expanded. Options:",
+            "  --threads <count>          number of worker threads (default: available processors)",
+            "  --segment-size <bytes>     size of the segments mapped or read at once, with suffix k or m (default: 16m)",
+            "  --hash-seed <seed|random>  hash station names with a seeded hash (see StationHash)",
+            "  --catalogue <file>         the known stations, one per line, looked up by a perfect hash (see StationCatalogue)",
+            "  --statistics <stats>       basic (default) for min/mean/max, percentiles to add p50/p95/p99 (mapped and stdin only)",
+            "  --format <format>          text (default), lines (one station per line) or snapshot (see ResultSnapshot)",
+            "  --output <file>            write the result to the file instead of stdout, for per-file snapshots to the directory",
+            "  --results <mode>           combined (default) for one result of all files, per-file for one result per file");
+
+    public RunOptions {
+        if (engine == null || engine.isEmpty()) {
+            throw new IllegalArgumentException("No engine given");
+        }
+        inputs = List.copyOf(inputs.isEmpty() ? List.of(DEFAULT_INPUT) : inputs);
+        if (inputs.contains(STDIN) && inputs.size() > 1) {
+            throw new IllegalArgumentException("stdin can't be combined with other inputs");
+        }
+        if (perFile && format == OutputFormat.SNAPSHOT && output == null) {
+            throw new IllegalArgumentException("Per-file snapshots need an output directory");
+        }
+    }
+
+    public static RunOptions of(String engine, Path... inputs) {
+        return new RunOptions(engine, List.of(inputs), EngineOptions.defaults(), OutputFormat.TEXT, null, false);
+    }
+
+    /**
+     * Parses the command line described by {@link #USAGE}.
+     *
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    public static RunOptions parse(String... args) {
+        String engine = null;
+        List<Path> inputs = new ArrayList<>();
+        EngineOptions engineOptions = EngineOptions.defaults();
+        OutputFormat format = OutputFormat.TEXT;
+        Path output = null;
+        boolean perFile = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--threads" -> engineOptions = engineOptions.withParallelism(Integer.parseInt(value));
+                    case "--segment-size" -> engineOptions = engineOptions.withSegmentSize(parseSize(value));
+                    case "--hash-seed" -> engineOptions = engineOptions.withStationHash(StationHash.of(value));
+                    case "--catalogue" -> engineOptions = engineOptions.withCatalogue(readCatalogue(Path.of(value)));
+                    case "--statistics" -> engineOptions = engineOptions.withHistograms(switch (value) {
+                        case "basic" -> false;
+                        case "percentiles" -> true;
+                        default -> throw new IllegalArgumentException("Unknown statistics " + value);
+                    });
+                    case "--format" -> format = OutputFormat.valueOf(value.toUpperCase(Locale.ROOT));
+                    case "--output" -> output = value.equals("-") ? null : Path.of(value);
+                    case "--results" -> perFile = switch (value) {
+                        case "combined" -> false;
+                        case "per-file" -> true;
+                        default -> throw new IllegalArgumentException("Unknown results mode " + value);
+                    };
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            else if (engine == null) {
+                engine = arg;
+            }
+            else {
+                inputs.add(Path.of(arg));
+            }
+        }
+
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    public RunOptions withInputs(List<Path> inputs) {
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    public RunOptions withEngineOptions(EngineOptions engineOptions) {
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    public RunOptions withFormat(OutputFormat format) {
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    public RunOptions withOutput(Path output) {
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    public RunOptions withPerFile(boolean perFile) {
+        return new RunOptions(engine, inputs, engineOptions, format, output, perFile);
+    }
+
+    private static StationCatalogue readCatalogue(Path file) {
+        try {
+            return StationCatalogue.read(file);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Can't read catalogue " + file, e);
+        }
+    }
+
+    /**
+     * Parses a size in bytes, optionally with the suffix {@code k} or {@code m}.
+     */
+    static int parseSize(String size) {
+        String value = size.toLowerCase(Locale.ROOT);
+        int factor = 1;
+        if (value.endsWith("k")) {
+            factor = 1024;
+        }
+        else if (value.endsWith("m")) {
+            factor = 1024 * 1024;
+        }
+        if (factor != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Math.multiplyExact(Integer.parseInt(value), factor);
+    }
+}
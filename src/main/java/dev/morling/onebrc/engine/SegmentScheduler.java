@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the segments of a byte range to worker threads, which keep claiming segments until the range is exhausted.
+ * Instead of one fixed slice per thread, a thread that is slowed down (by other load or page cache misses) simply claims
+ * fewer segments.
+ * <p>
+ * Segment sizes adapt to the remaining work: each segment is a share of the bytes not claimed yet, at most
+ * {@link EngineOptions#segmentSize()} and at least {@link #MIN_SEGMENT_SIZE}. Segments are thus large at the start, keeping
+ * the per-segment overhead low, and become small towards the end, so that all threads finish at about the same time.
+ * <p>
+ * By default segments are raw byte ranges, and workers need to deal with lines crossing segment boundaries themselves: a
+ * worker skips the partial first line of a segment (unless the segment starts the range) and finishes the last line which
+ * starts within the segment. Schedulers created by {@link #lineAligned(FileChannel, long, long, EngineOptions)} instead
+ * move both bounds of each segment to the next line start. Threads compete for the raw byte ranges only, by
+ * compare-and-set, and the thread which has claimed a range aligns it afterwards: both neighbours of a bound find the same
+ * line start, so the aligned segments still cover the range exactly once, and no thread reads the file while others retry.
+ */
+public final class SegmentScheduler {
+
+    /**
+     * Lower bound of the segment size, unless the configured segment size is smaller.
+     */
+    public static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Bytes read at once when searching for a line break.
+     */
+    private static final int LINE_READ_SIZE = 128;
+
+    /**
+     * A segment of the range, from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    public record Segment(long start, long end) {
+
+        public int size() {
+            return (int) (end - start);
+        }
+    }
+
+    private final long start;
+    private final long end;
+    private final int minSegmentSize;
+    private final int maxSegmentSize;
+    private final int workers;
+    private final FileChannel channel;
+    private final AtomicLong cursor;
+
+    private SegmentScheduler(long start, long end, EngineOptions options, FileChannel channel) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range [" + start + ", " + end + ")");
+        }
+        this.start = start;
+        this.end = end;
+        this.maxSegmentSize = options.segmentSize();
+        this.minSegmentSize = Math.min(MIN_SEGMENT_SIZE, maxSegmentSize);
+        this.workers = (int) Math.max(1, Math.min(options.parallelism(), (end - start + minSegmentSize - 1) / minSegmentSize));
+        this.channel = channel;
+        this.cursor = new AtomicLong(start);
+    }
+
+    /**
+     * Schedules raw byte segments of {@code [start, end)}.
+     */
+    public static SegmentScheduler of(long start, long end, EngineOptions options) {
+        return new SegmentScheduler(start, end, options, null);
+    }
+
+    /**
+     * Schedules segments of {@code [start, end)} which each end right after a line break, or at {@code end}. {@code start}
+     * must be the beginning of a line.
+     */
+    public static SegmentScheduler lineAligned(FileChannel channel, long start, long end, EngineOptions options) {
+        return new SegmentScheduler(start, end, options, channel);
+    }
+
+    public long start() {
+        return start;
+    }
+
+    public long end() {
+        return end;
+    }
+
+    /**
+     * The number of threads worth starting for the range, i.e. the configured parallelism unless the range is too small to
+     * keep that many threads busy.
+     */
+    public int workers() {
+        return workers;
+    }
+
+    /**
+     * Claims the next segment, or returns {@code null} if the whole range has been claimed. Safe to be called from any
+     * number of threads.
+     */
+    public Segment next() throws IOException {
+        for (;;) {
+            long position = cursor.get();
+            if (position >= end) {
+                return null;
+            }
+
+            long remaining = end - position;
+            long size = Math.min(remaining, Math.max(minSegmentSize, Math.min(maxSegmentSize, remaining / (2L * workers))));
+            long segmentEnd = position + size;
+            if (!cursor.compareAndSet(position, segmentEnd)) {
+                continue;
+            }
+            if (channel == null) {
+                return new Segment(position, segmentEnd);
+            }
+
+            // a line longer than the range claimed leaves nothing to aggregate, the next range is claimed then
+            long lineStart = lineStart(position);
+            long lineEnd = lineStart(segmentEnd);
+            if (lineStart < lineEnd) {
+                return new Segment(lineStart, lineEnd);
+            }
+        }
+    }
+
+    /**
+     * Returns the start of the first line beginning at or after {@code position}, which is a bound of a claimed range.
+     */
+    private long lineStart(long position) throws IOException {
+        if (position == start || position >= end) {
+            return position;
+        }
+        return Math.min(end, nextLineStart(channel, position - 1));
+    }
+
+    /**
+     * Returns the position right after the first line break at or after {@code position}, or the end of the file.
+     */
+    static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LINE_READ_SIZE);
+        long size = channel.size();
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a measurements file into line-aligned shards, has each of them aggregated by a separate {@link ShardWorker}
+ * process and merges the partial results, so that a file can be processed by more cores, and with more page cache, than
+ * a single JVM has.
+ * <p>
+ * Partial results travel as {@link ResultSnapshot}s. Local workers are started by the coordinator and write their snapshot
+ * to stdout. In listening mode, the coordinator prints the command for each shard and waits for the workers to connect;
+ * these may run on any host which has the file at the same path. A result which can't be read, or was aggregated from a
+ * file of another size or content, is rejected and the coordinator waits for another worker of that shard. If not all
+ * shards have arrived within the timeout, one hour unless given in seconds, the coordinator fails, listing the missing
+ * ones.
+ * <p>
+ * The worker options are passed on to every worker. Without {@code --threads}, local workers share the processors of
+ * this host, and remote workers use all processors of theirs.
+ * <p>
+ * Usage: {@code ShardCoordinator [--threads <count>] [--segment-size <bytes>] [--catalogue <file>] <file> <shards>
+ * [--listen <port> [--timeout <seconds>]]}
+ */
+public class ShardCoordinator {
+
+    /**
+     * A byte range of the measurements file, starting at the beginning of a line and ending after a line break or at the
+     * end of the file.
+     */
+    public record Shard(int index, long start, long end) {
+    }
+
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofHours(1);
+
+    /**
+     * Longest a worker connection may be idle before it is dropped, so that a stuck connection doesn't block the others.
+     */
+    static final Duration CONNECTION_TIMEOUT = Duration.ofMinutes(1);
+
+    /**
+     * Largest snapshot accepted from a worker, about two million stations with 100 byte names.
+     */
+    static final int MAX_SNAPSHOT_SIZE = 256 * 1024 * 1024;
+
+    private static final String USAGE = "Usage: ShardCoordinator [--threads <count>] [--segment-size <bytes>] [--catalogue <file>] <file> <shards> "
+            + "[--listen <port> [--timeout <seconds>]]";
+
+    private final List<String> workerOptions;
+
+    /**
+     * @param workerOptions the options passed on to each worker, as on the {@link ShardWorker} command line
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    public ShardCoordinator(List<String> workerOptions) {
+        List<String> arguments = new ArrayList<>();
+        ShardWorker.parseOptions(workerOptions, arguments);
+        if (!arguments.isEmpty()) {
+            throw new IllegalArgumentException("Not a worker option: " + arguments.get(0));
+        }
+        this.workerOptions = new ArrayList<>(workerOptions);
+        for (int i = 0; i < this.workerOptions.size(); i += 2) {
+            if (this.workerOptions.get(i).equals("--catalogue")) {
+                this.workerOptions.set(i + 1, Path.of(this.workerOptions.get(i + 1)).toAbsolutePath().toString());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> workerOptions = new ArrayList<>();
+        List<String> arguments = new ArrayList<>();
+        Integer port = null;
+        Duration timeout = DEFAULT_TIMEOUT;
+        ShardCoordinator coordinator;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--")) {
+                    arguments.add(args[i]);
+                }
+                else if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + args[i]);
+                }
+                else if (args[i].equals("--listen")) {
+                    port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("--timeout")) {
+                    timeout = Duration.ofSeconds(Long.parseLong(args[++i]));
+                }
+                else {
+                    workerOptions.add(args[i]);
+                    workerOptions.add(args[++i]);
+                }
+            }
+            if (arguments.size() != 2) {
+                throw new IllegalArgumentException("Expected a file and the number of shards");
+            }
+            coordinator = new ShardCoordinator(workerOptions);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        Path input = Path.of(arguments.get(0)).toAbsolutePath();
+        int shards = Integer.parseInt(arguments.get(1));
+
+        if (port == null) {
+            System.out.println(coordinator.runLocal(input, shards));
+        }
+        else {
+            try (ServerSocket server = new ServerSocket(port)) {
+                String address = InetAddress.getLocalHost().getHostName() + ":" + server.getLocalPort();
+                for (Shard shard : split(input, shards)) {
+                    System.err.println(String.join(" ", coordinator.workerCommand(input, shard, address)));
+                }
+                System.out.println(coordinator.listen(input, shards, server, timeout));
+            }
+        }
+    }
+
+    /**
+     * Splits the file into at most {@code count} shards of about the same size.
+     */
+    public static List<Shard> split(Path input, int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, but was " + count);
+        }
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<Shard> shards = new ArrayList<>(count);
+            long start = 0;
+            for (int i = 1; i <= count && start < size; i++) {
+                long end = i == count ? size : SegmentScheduler.nextLineStart(channel, Math.max(start, size / count * i));
+                if (end > start) {
+                    shards.add(new Shard(shards.size(), start, end));
+                    start = end;
+                }
+            }
+            return shards;
+        }
+    }
+
+    /**
+     * Aggregates the file with one worker process per shard on this machine.
+     */
+    public SortedMap<String, StationStats> runLocal(Path input, int shardCount) throws IOException {
+        List<Shard> shards = split(input, shardCount);
+        List<String> options = workerOptions;
+        if (!options.contains("--threads")) {
+            options = new ArrayList<>(options);
+            options.add("--threads");
+            options.add(String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / shards.size())));
+        }
+        List<Process> workers = new ArrayList<>(shards.size());
+        try {
+            for (Shard shard : shards) {
+                workers.add(new ProcessBuilder(workerCommand(input, shard, null, options))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+            }
+
+            ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+            for (int i = 0; i < workers.size(); i++) {
+                Process worker = workers.get(i);
+                byte[] snapshot;
+                try (InputStream in = worker.getInputStream()) {
+                    snapshot = in.readAllBytes();
+                }
+                int exitCode = worker.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker for " + shards.get(i) + " failed with exit code " + exitCode);
+                }
+                ResultSnapshot.wrap(ByteBuffer.wrap(snapshot)).writeTo(writer);
+            }
+            return ResultSnapshot.wrap(writer.toByteBuffer()).toSortedMap();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", e);
+        }
+        finally {
+            workers.forEach(Process::destroy);
+        }
+    }
+
+    /**
+     * Like {@link #listen(Path, int, ServerSocket, Duration)} with the {@link #DEFAULT_TIMEOUT}.
+     */
+    public SortedMap<String, StationStats> listen(Path input, int shardCount, ServerSocket server) throws IOException {
+        return listen(input, shardCount, server, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Waits until a worker has connected and sent its result for each shard of the file, and merges these. Results which
+     * can't be read or don't match the file are rejected, and results for shards which have already been received, e.g.
+     * from a worker that was restarted, are ignored.
+     *
+     * @throws IOException if not all results have been received within the timeout, naming the missing shards
+     */
+    public SortedMap<String, StationStats> listen(Path input, int shardCount, ServerSocket server, Duration timeout) throws IOException {
+        List<Shard> shards = split(input, shardCount);
+        long size;
+        long[] fingerprints = new long[shards.size()];
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            size = channel.size();
+            for (Shard shard : shards) {
+                fingerprints[shard.index()] = Checkpoint.fingerprint(channel, shard.end());
+            }
+        }
+
+        ResultSnapshot[] snapshots = new ResultSnapshot[shards.size()];
+        boolean[] received = new boolean[shards.size()];
+        long deadline = System.nanoTime() + timeout.toNanos();
+
+        for (int remaining = shards.size(); remaining > 0;) {
+            int remainingMillis = remainingMillis(deadline, received, timeout);
+            server.setSoTimeout(remainingMillis);
+            Socket socket;
+            try {
+                socket = server.accept();
+            }
+            catch (SocketTimeoutException e) {
+                throw timedOut(received, timeout, e);
+            }
+
+            try (socket;
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                socket.setSoTimeout((int) Math.min(remainingMillis, CONNECTION_TIMEOUT.toMillis()));
+                String rejection = "";
+                try {
+                    int shard = receive(in, size, fingerprints, snapshots);
+                    if (!received[shard]) {
+                        received[shard] = true;
+                        remaining--;
+                    }
+                }
+                catch (IOException e) {
+                    rejection = e.getMessage() != null ? e.getMessage() : e.toString();
+                    System.err.println("Rejected result from " + socket.getRemoteSocketAddress() + ": " + rejection);
+                }
+                out.writeUTF(rejection);
+            }
+            catch (IOException e) {
+                System.err.println("Failed to receive result from " + socket.getRemoteSocketAddress() + ": " + e);
+            }
+        }
+
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        for (ResultSnapshot snapshot : snapshots) {
+            snapshot.writeTo(writer);
+        }
+        return ResultSnapshot.wrap(writer.toByteBuffer()).toSortedMap();
+    }
+
+    /**
+     * Reads the result of one worker and keeps its snapshot unless one for the shard has already been received, returning
+     * the shard index.
+     *
+     * @throws IOException if the result can't be read, is for an unknown shard, or was aggregated from another file
+     */
+    private static int receive(DataInputStream in, long size, long[] fingerprints, ResultSnapshot[] snapshots) throws IOException {
+        int shard = in.readInt();
+        long workerSize = in.readLong();
+        long fingerprint = in.readLong();
+        int length = in.readInt();
+
+        if (shard < 0 || shard >= snapshots.length) {
+            throw new IOException("Unknown shard " + shard);
+        }
+        if (workerSize != size || fingerprint != fingerprints[shard]) {
+            throw new IOException("Shard " + shard + " was aggregated from another file, of " + workerSize + " instead of " + size
+                    + " bytes or with other contents");
+        }
+        if (length < 0 || length > MAX_SNAPSHOT_SIZE) {
+            throw new IOException("Invalid snapshot length " + length + " for shard " + shard);
+        }
+
+        byte[] snapshot = new byte[length];
+        in.readFully(snapshot);
+        ResultSnapshot result = ResultSnapshot.wrap(ByteBuffer.wrap(snapshot));
+        if (snapshots[shard] == null) {
+            snapshots[shard] = result;
+        }
+        return shard;
+    }
+
+    /**
+     * Returns the time left until the deadline as a socket timeout, which is at least one millisecond as zero means
+     * waiting forever.
+     */
+    private static int remainingMillis(long deadline, boolean[] received, Duration timeout) throws IOException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw timedOut(received, timeout, null);
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    private static IOException timedOut(boolean[] received, Duration timeout, Throwable cause) {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < received.length; i++) {
+            if (!received[i]) {
+                missing.add(i);
+            }
+        }
+        return new IOException("No result for shards " + missing + " within " + timeout, cause);
+    }
+
+    /**
+     * The command line for running the worker of the given shard with the worker options of this coordinator.
+     */
+    List<String> workerCommand(Path input, Shard shard, String coordinator) {
+        return workerCommand(input, shard, coordinator, workerOptions);
+    }
+
+    /**
+     * The command line for running the worker of the given shard with the same JVM and class path as this process and the
+     * given worker options. Without a coordinator address, the worker writes its result to stdout.
+     */
+    private static List<String> workerCommand(Path input, Shard shard, String coordinator, List<String> options) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("--class-path");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        command.addAll(options);
+        command.add(input.toString());
+        command.add(String.valueOf(shard.start()));
+        command.add(String.valueOf(shard.end()));
+        if (coordinator != null) {
+            command.add(coordinator);
+            command.add(String.valueOf(shard.index()));
+        }
+        return command;
+    }
+}
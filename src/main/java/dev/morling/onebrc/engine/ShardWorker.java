@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregates one shard, i.e. a line-aligned byte range, of a measurements file and sends the partial result as a
+ * {@link ResultSnapshot} to the {@link ShardCoordinator}: either on stdout (when started by a local coordinator), or over a
+ * socket connection to a coordinator on another host. On the socket, the snapshot is framed by the shard index, the size
+ * of the file and the {@link Checkpoint} fingerprint of the shard's last bytes, so that the coordinator can tell results
+ * of another file apart, and by the snapshot length. The coordinator answers with an empty message if it took the result,
+ * or with the reason for rejecting it.
+ * <p>
+ * Without {@code --threads}, the worker uses all processors of its host.
+ * <p>
+ * Usage: {@code ShardWorker [--threads <count>] [--segment-size <bytes>] [--catalogue <file>] <file> <start> <end>
+ * [<coordinator host:port> <shard index>]}
+ */
+public class ShardWorker {
+
+    static final String USAGE = "Usage: ShardWorker [--threads <count>] [--segment-size <bytes>] [--catalogue <file>] <file> <start> <end> "
+            + "[<coordinator host:port> <shard index>]";
+
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        EngineOptions options;
+        try {
+            options = parseOptions(List.of(args), arguments);
+            if (arguments.size() != 3 && arguments.size() != 5) {
+                throw new IllegalArgumentException("Expected 3 or 5 arguments, but got " + arguments.size());
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        Path file = Path.of(arguments.get(0));
+        long start = Long.parseLong(arguments.get(1));
+        long end = Long.parseLong(arguments.get(2));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer snapshot = aggregate(channel, start, end, options);
+
+            if (arguments.size() == 3) {
+                OutputStream out = new BufferedOutputStream(System.out);
+                out.write(snapshot.array(), 0, snapshot.limit());
+                out.flush();
+            }
+            else {
+                String coordinator = arguments.get(3);
+                int separator = coordinator.lastIndexOf(':');
+                try (Socket socket = new Socket(coordinator.substring(0, separator), Integer.parseInt(coordinator.substring(separator + 1)));
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                    out.writeInt(Integer.parseInt(arguments.get(4)));
+                    out.writeLong(channel.size());
+                    out.writeLong(Checkpoint.fingerprint(channel, end));
+                    out.writeInt(snapshot.limit());
+                    out.write(snapshot.array(), 0, snapshot.limit());
+                    out.flush();
+
+                    String rejection = in.readUTF();
+                    if (!rejection.isEmpty()) {
+                        System.err.println("Coordinator rejected the result: " + rejection);
+                        System.exit(1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the worker options of {@link #USAGE} into engine options, adding all other arguments to {@code arguments}.
+     *
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    static EngineOptions parseOptions(List<String> args, List<String> arguments) {
+        EngineOptions options = EngineOptions.defaults();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (!arg.startsWith("--")) {
+                arguments.add(arg);
+                continue;
+            }
+            if (i + 1 == args.size()) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args.get(++i);
+            switch (arg) {
+                case "--threads" -> options = options.withParallelism(Integer.parseInt(value));
+                case "--segment-size" -> options = options.withSegmentSize(RunOptions.parseSize(value));
+                case "--catalogue" -> options = options.withCatalogue(readCatalogue(Path.of(value)));
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static StationCatalogue readCatalogue(Path file) {
+        try {
+            return StationCatalogue.read(file);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Can't read catalogue " + file, e);
+        }
+    }
+
+    static ByteBuffer aggregate(FileChannel channel, long start, long end, EngineOptions options) throws IOException {
+        ResultSnapshot.Writer writer = new ResultSnapshot.Writer();
+        new MappedEngine().aggregate(channel, start, end, options).writeTo(writer);
+        return writer.toByteBuffer();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Station names of up to 16 bytes, which most real names are, held as two little-endian {@code long} words, zero-padded
+ * after the name: the first eight bytes and the next eight. Such a name is read from the input with two word loads,
+ * found by locating the delimiter within the words (SWAR), and compared with two {@code long} comparisons, without
+ * copying it into an array or looping over its bytes. {@link StationTable} keeps the words of short names inline in its
+ * slots.
+ */
+final class ShortKey {
+
+    static final int MAX_LENGTH = 2 * Long.BYTES;
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long DELIMITERS = ';' * ONES;
+
+    private ShortKey() {
+    }
+
+    /**
+     * Returns a word with the high bit set in the byte of the first {@code ;} of the given word, and possibly in later
+     * bytes, or 0 if it has none.
+     */
+    static long delimiters(long word) {
+        long matches = word ^ DELIMITERS;
+        return (matches - ONES) & ~matches & HIGH_BITS;
+    }
+
+    /**
+     * Returns the index of the first {@code ;} flagged by {@link #delimiters}.
+     */
+    static int firstIndex(long delimiters) {
+        return Long.numberOfTrailingZeros(delimiters) >>> 3;
+    }
+
+    /**
+     * Keeps the first {@code length} bytes of the word, for a length less than eight, clearing the others.
+     */
+    static long head(long word, int length) {
+        return word & ((1L << (length << 3)) - 1);
+    }
+
+    /**
+     * Returns the first word of a short name in the array.
+     */
+    static long first(byte[] name, int offset, int length) {
+        return word(name, offset, Math.min(length, Long.BYTES));
+    }
+
+    /**
+     * Returns the second word of a short name in the array.
+     */
+    static long second(byte[] name, int offset, int length) {
+        return length > Long.BYTES ? word(name, offset + Long.BYTES, length - Long.BYTES) : 0;
+    }
+
+    /**
+     * Hashes a short name. {@link MappedEngine} uses this for all names of up to {@link #MAX_LENGTH} bytes, unless there
+     * is a {@link StationHash}.
+     */
+    static int hash(long first, long second, int length) {
+        long hash = (first ^ (second * 0x9E3779B97F4A7C15L) ^ length) * 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Returns the bytes of the short name.
+     */
+    static byte[] toBytes(long first, long second, int length) {
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = (byte) ((i < Long.BYTES ? first : second) >>> ((i & 7) << 3));
+        }
+        return name;
+    }
+
+    private static long word(byte[] name, int offset, int length) {
+        if (length == Long.BYTES) {
+            return (long) LONG_VIEW.get(name, offset);
+        }
+        if (offset + Long.BYTES <= name.length) {
+            return head((long) LONG_VIEW.get(name, offset), length);
+        }
+        long word = 0;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            word = (word << 8) | (name[i] & 0xFF);
+        }
+        return word;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal perfect hash over a fixed list of station names, known up front, e.g. the weather stations of
+ * {@code CreateMeasurements}. A {@link StationTable} created with a catalogue looks up known names without probing:
+ * {@link #slot} maps a name to the only slot it can be in and compares it with the name there, and only names not in the
+ * catalogue go on to the probing table.
+ * <p>
+ * Names are keyed by their length and two words (SWAR): for names of up to 16 bytes these are their {@link ShortKey}
+ * words, so that the parser can look them up by the words it has already read and they are compared as two words; for
+ * longer names the first and last eight bytes, and the key also covers the words in between, and they are compared in
+ * full. The hash is built by hash and displace: the keys are put into buckets of about four, and for each bucket, largest
+ * first, a seed is searched under which its keys hash to distinct free slots. A lookup thus takes the seed of the bucket and then the slot; there are exactly as many slots as names.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class StationCatalogue {
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int KEYS_PER_BUCKET = 4;
+    private static final int MAX_SEED = 1 << 24;
+
+    /**
+     * The seed of each bucket, premultiplied to be mixed into the key.
+     */
+    private final long[] seeds;
+
+    /**
+     * The two words and the length of the name in each slot, next to each other.
+     */
+    private final long[] words;
+    private final byte[][] names;
+
+    private StationCatalogue(long[] seeds, long[] words, byte[][] names) {
+        this.seeds = seeds;
+        this.words = words;
+        this.names = names;
+    }
+
+    /**
+     * Builds the catalogue of the given names. Duplicates are ignored, as are names whose key equals the key of an earlier
+     * one, which is next to impossible; those are left to the probing table.
+     */
+    public static StationCatalogue of(Collection<String> stations) {
+        List<byte[]> keyed = new ArrayList<>();
+        Set<Long> keys = new HashSet<>();
+        for (String station : stations) {
+            byte[] name = station.getBytes(StandardCharsets.UTF_8);
+            if (keys.add(key(name))) {
+                keyed.add(name);
+            }
+        }
+
+        int size = keyed.size();
+        long[] seeds = new long[Math.max(1, size / KEYS_PER_BUCKET)];
+        List<List<byte[]>> buckets = new ArrayList<>();
+        for (int i = 0; i < seeds.length; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (byte[] name : keyed) {
+            buckets.get(bucket(key(name), seeds.length)).add(name);
+        }
+
+        byte[][] names = new byte[size][];
+        Integer[] order = new Integer[seeds.length];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+        int[] slots = new int[KEYS_PER_BUCKET * 8];
+        for (int bucket : order) {
+            List<byte[]> members = buckets.get(bucket);
+            if (members.isEmpty()) {
+                break;
+            }
+            if (slots.length < members.size()) {
+                slots = new int[members.size()];
+            }
+            seeds[bucket] = place(members, names, slots);
+        }
+
+        long[] words = new long[3 * size];
+        for (int slot = 0; slot < size; slot++) {
+            words[3 * slot] = firstWord(names[slot], 0, names[slot].length);
+            words[3 * slot + 1] = lastWord(names[slot], 0, names[slot].length);
+            words[3 * slot + 2] = names[slot].length;
+        }
+        return new StationCatalogue(seeds, words, names);
+    }
+
+    /**
+     * Reads the catalogue from a file with one station name per line, in UTF-8; empty lines are skipped.
+     */
+    public static StationCatalogue read(Path file) throws IOException {
+        return of(Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.isEmpty())
+                .toList());
+    }
+
+    /**
+     * Returns the number of names, which is also the number of slots.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the name in the given slot, which must not be modified.
+     */
+    byte[] name(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * Returns the slot of the name at {@code [offset, offset + length)} of the array, or -1 if it isn't in the catalogue.
+     */
+    int slot(byte[] name, int offset, int length) {
+        if (names.length == 0) {
+            return -1;
+        }
+        long first = firstWord(name, offset, length);
+        long last = lastWord(name, offset, length);
+        long key = key(name, offset, length, first, last);
+        int slot = seededSlot(key, seeds[bucket(key, seeds.length)], names.length);
+
+        if (words[3 * slot] != first || words[3 * slot + 1] != last || words[3 * slot + 2] != length) {
+            return -1;
+        }
+        if (length > ShortKey.MAX_LENGTH && !Arrays.equals(names[slot], 0, length, name, offset, offset + length)) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of the name of up to {@link ShortKey#MAX_LENGTH} bytes with the given {@link ShortKey} words, or -1
+     * if it isn't in the catalogue. As the words cover the whole name, no bytes are compared.
+     */
+    int slot(long first, long second, int length) {
+        if (names.length == 0) {
+            return -1;
+        }
+        long key = finish(start(first, length), second);
+        int slot = seededSlot(key, seeds[bucket(key, seeds.length)], names.length);
+
+        if (words[3 * slot] != first || words[3 * slot + 1] != second || words[3 * slot + 2] != length) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Searches a seed under which the names of a bucket go into distinct free slots, and puts them there.
+     */
+    private static long place(List<byte[]> members, byte[][] names, int[] slots) {
+        for (int attempt = 0; attempt < MAX_SEED; attempt++) {
+            long seed = attempt * 0x9E3779B97F4A7C15L;
+            int placed = 0;
+            for (byte[] name : members) {
+                int slot = seededSlot(key(name), seed, names.length);
+                if (names[slot] != null || contains(slots, placed, slot)) {
+                    break;
+                }
+                slots[placed++] = slot;
+            }
+            if (placed == members.size()) {
+                for (int i = 0; i < placed; i++) {
+                    names[slots[i]] = members.get(i);
+                }
+                return seed;
+            }
+        }
+        throw new IllegalStateException("No perfect hash found for " + names.length + " stations");
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long key(byte[] name) {
+        return key(name, 0, name.length, firstWord(name, 0, name.length), lastWord(name, 0, name.length));
+    }
+
+    /**
+     * Combines the words, with two multiplications for names of up to 16 bytes; the high bits select the bucket, and are
+     * folded into the low ones.
+     */
+    private static long key(byte[] name, int offset, int length, long first, long last) {
+        long key = start(first, length);
+        for (int i = Long.BYTES; i < length - Long.BYTES; i += Long.BYTES) {
+            key = mix(key ^ (long) LONG_VIEW.get(name, offset + i));
+        }
+        return finish(key, last);
+    }
+
+    private static long start(long first, int length) {
+        return first * 0x9E3779B97F4A7C15L + length;
+    }
+
+    private static long finish(long key, long last) {
+        key = ((key + last) ^ ((key + last) >>> 31)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 32);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int bucket(long key, int buckets) {
+        return range(key >>> 32, buckets);
+    }
+
+    private static int seededSlot(long key, long seed, int slots) {
+        return range(((key ^ seed) * 0xC2B2AE3D27D4EB4FL) >>> 32, slots);
+    }
+
+    /**
+     * Maps the 32 bit hash to {@code [0, size)} by multiplication instead of division.
+     */
+    private static int range(long hash, int size) {
+        return (int) ((hash * size) >>> 32);
+    }
+
+    /**
+     * The first eight bytes of the name, zero-padded for shorter names.
+     */
+    private static long firstWord(byte[] name, int offset, int length) {
+        return ShortKey.first(name, offset, length);
+    }
+
+    /**
+     * The {@link ShortKey#second second ShortKey word} of names of up to 16 bytes, the last eight bytes of longer ones.
+     */
+    private static long lastWord(byte[] name, int offset, int length) {
+        return length > ShortKey.MAX_LENGTH ? (long) LONG_VIEW.get(name, offset + length - Long.BYTES) : ShortKey.second(name, offset, length);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free map from station names to dense ids 0, 1, 2, ..., shared by all worker threads, so that they can keep their
+ * statistics in plain arrays indexed by id (see {@link DenseStats}). Adapted from the {@code Dictionary} of
+ * {@code CalculateAverage_richardstartin}, which in turn is adapted from async-profiler: names are inserted into the
+ * cells of a row by compare-and-set, and a full row continues in a smaller table of its own. Names are never removed.
+ * <p>
+ * Unlike the original, the tables below the root don't use the next bits of the same hash: names with the same hash would
+ * then collide at every level, each level allocating a table for them. Once a row of the root is full, the name is hashed
+ * again from its bytes, with a hash unrelated to the one given, and each level mixes in its depth.
+ * <p>
+ * Ids don't depend on the position of a name in the table either: the thread which inserts a name takes the next id from
+ * a counter. Threads finding a name whose id isn't published yet spin for the few instructions until it is. With a
+ * {@link StationCatalogue}, its names take the ids 0 to {@code catalogue.size() - 1}, their slots, and are looked up in
+ * the catalogue without touching the shared tables.
+ */
+final class StationDictionary {
+
+    private static final int ROOT_ROW_BITS = 12;
+    private static final int ROW_BITS = 6;
+    private static final int CELLS = 4;
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << 16;
+
+    private static final class Entry {
+
+        final byte[] name;
+        final int hash;
+        volatile int id = -1;
+
+        Entry(byte[] name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Table {
+
+        final int mask;
+        final AtomicReferenceArray<Entry> cells;
+        final AtomicReferenceArray<Table> next;
+
+        Table(int rowBits) {
+            this.mask = (1 << rowBits) - 1;
+            this.cells = new AtomicReferenceArray<>(CELLS << rowBits);
+            this.next = new AtomicReferenceArray<>(1 << rowBits);
+        }
+
+        Table next(int row) {
+            Table table = next.get(row);
+            if (table == null) {
+                next.compareAndSet(row, null, new Table(ROW_BITS));
+                table = next.get(row);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * The lookups of one thread and the cells they compared, counted for the {@link EngineMetrics} if these are enabled,
+     * as the dictionary itself is shared.
+     */
+    static final class Lookups {
+
+        private long lookups;
+        private long probes;
+
+        /**
+         * Adds the lookups and probes since the last call to the {@link EngineMetrics} of the current thread.
+         */
+        void record() {
+            EngineMetrics.lookups(lookups, probes);
+            lookups = 0;
+            probes = 0;
+        }
+    }
+
+    private final Table root = new Table(ROOT_ROW_BITS);
+    private final AtomicInteger size;
+    private final StationCatalogue catalogue;
+
+    /**
+     * The names by id, in pages of {@link #PAGE_SIZE}, which are allocated when their first id is handed out.
+     */
+    private final AtomicReferenceArray<byte[][]> names = new AtomicReferenceArray<>(MAX_PAGES);
+
+    StationDictionary() {
+        this(null);
+    }
+
+    /**
+     * @param catalogue the known stations, which take the first ids, or {@code null}
+     */
+    StationDictionary(StationCatalogue catalogue) {
+        this.catalogue = catalogue;
+        int known = catalogue != null ? catalogue.size() : 0;
+        for (int slot = 0; slot < known; slot++) {
+            page(slot)[slot & (PAGE_SIZE - 1)] = catalogue.name(slot);
+        }
+        this.size = new AtomicInteger(known);
+    }
+
+    /**
+     * Returns the id of the station whose name is at {@code [0, length)} of {@code name}, adding the station if it isn't
+     * present yet.
+     */
+    int id(byte[] name, int length, int hash, Lookups lookups) {
+        if (EngineMetrics.ENABLED) {
+            lookups.lookups++;
+        }
+        if (catalogue != null) {
+            int slot = catalogue.slot(name, 0, length);
+            if (slot >= 0) {
+                return slot;
+            }
+        }
+        Table table = root;
+        int bits = hash;
+        int rehash = 0;
+        for (int level = 1;; level++) {
+            int row = bits & table.mask;
+            for (int cell = row * CELLS; cell < (row + 1) * CELLS; cell++) {
+                if (EngineMetrics.ENABLED) {
+                    lookups.probes++;
+                }
+                Entry entry = table.cells.get(cell);
+                if (entry == null) {
+                    Entry added = new Entry(Arrays.copyOf(name, length), hash);
+                    if (table.cells.compareAndSet(cell, null, added)) {
+                        return register(added);
+                    }
+                    entry = table.cells.get(cell);
+                }
+                if (entry.hash == hash && Arrays.equals(entry.name, 0, entry.name.length, name, 0, length)) {
+                    return idOf(entry);
+                }
+            }
+            table = table.next(row);
+            if (level == 1) {
+                rehash = rehash(name, length);
+            }
+            bits = mix(rehash + level * 0x9E3779B9);
+        }
+    }
+
+    /**
+     * FNV-1a hash of the name, which differs for names with the same polynomial hash as given by the parsers.
+     */
+    private static int rehash(byte[] name, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ name[i]) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so that all bits of the level's hash depend on all bits of the input.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * Returns the number of stations. Only exact once all threads adding stations are done.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the name of the station with the given id, which must be less than {@link #size()}.
+     */
+    byte[] name(int id) {
+        return names.get(id >>> PAGE_BITS)[id & (PAGE_SIZE - 1)];
+    }
+
+    private int register(Entry entry) {
+        int id = size.getAndIncrement();
+        page(id)[id & (PAGE_SIZE - 1)] = entry.name;
+        // publishes the name along with the id
+        entry.id = id;
+        return id;
+    }
+
+    /**
+     * Returns the page of names holding the given id, allocating it if needed.
+     */
+    private byte[][] page(int id) {
+        int page = id >>> PAGE_BITS;
+        if (page >= MAX_PAGES) {
+            throw new IllegalStateException("More than " + MAX_PAGES * PAGE_SIZE + " stations");
+        }
+        byte[][] pageNames = names.get(page);
+        if (pageNames == null) {
+            names.compareAndSet(page, null, new byte[PAGE_SIZE][]);
+            pageNames = names.get(page);
+        }
+        return pageNames;
+    }
+
+    private static int idOf(Entry entry) {
+        int id;
+        while ((id = entry.id) < 0) {
+            Thread.onSpinWait();
+        }
+        return id;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+/**
+ * Seeded hash of station names, for inputs which may have been crafted to collide under the fixed polynomial hashes
+ * ({@code 31 * hash + b} and the like) the tables use by default. Those hashes map whole families of names to the same
+ * value, e.g. any concatenation of "Aa" and "BB" blocks, so that a linear probing table degrades into a scan over all
+ * stations. Here the name is consumed eight bytes at a time (SWAR), and each word is combined with the state by a
+ * 64x64 to 128 bit multiplication of values masked with secrets derived from the seed, folding the high and low halves
+ * of the product. Without knowing the seed, colliding names can't be computed up front.
+ * <p>
+ * Instances are immutable and can be shared between threads; all tables which are merged must use the same instance.
+ */
+public final class StationHash {
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LITTLE_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final long wordSecret;
+    private final long stateSecret;
+    private final long finalSecret;
+
+    public StationHash(long seed) {
+        // odd and with a mix of set and cleared bits in both halves, whatever the seed
+        this.wordSecret = splitMix(seed) | 0x0101010101010101L;
+        this.stateSecret = splitMix(seed + 1) | 0x0101010101010101L;
+        this.finalSecret = splitMix(seed + 2) | 1;
+    }
+
+    /**
+     * Returns the hash for the given seed, or for a random seed if it is {@code random}.
+     */
+    public static StationHash of(String seed) {
+        return new StationHash(seed.equals("random") ? new SecureRandom().nextLong() : Long.parseLong(seed));
+    }
+
+    /**
+     * Hashes {@code length} bytes of the array starting at {@code offset}.
+     */
+    public int hash(byte[] name, int offset, int length) {
+        long state = stateSecret ^ length;
+        int end = offset + length;
+        for (; offset + Long.BYTES <= end; offset += Long.BYTES) {
+            state = mix((long) LONG_VIEW.get(name, offset), state);
+        }
+        if (offset < end) {
+            long word = 0;
+            for (int i = end - 1; i >= offset; i--) {
+                word = (word << 8) | (name[i] & 0xFF);
+            }
+            state = mix(word, state);
+        }
+        return finish(state);
+    }
+
+    /**
+     * Hashes {@code length} bytes of the segment starting at {@code offset}, giving the same value as
+     * {@link #hash(byte[], int, int)} for the same bytes.
+     */
+    public int hash(MemorySegment name, long offset, int length) {
+        long state = stateSecret ^ length;
+        long end = offset + length;
+        for (; offset + Long.BYTES <= end; offset += Long.BYTES) {
+            state = mix(name.get(LITTLE_ENDIAN_LONG, offset), state);
+        }
+        if (offset < end) {
+            long word = 0;
+            for (long i = end - 1; i >= offset; i--) {
+                word = (word << 8) | (name.get(ValueLayout.JAVA_BYTE, i) & 0xFF);
+            }
+            state = mix(word, state);
+        }
+        return finish(state);
+    }
+
+    /**
+     * Hashes a name of up to {@link ShortKey#MAX_LENGTH} bytes given as {@link ShortKey} words, giving the same value as
+     * {@link #hash(byte[], int, int)} for its bytes.
+     */
+    int hash(long first, long second, int length) {
+        long state = stateSecret ^ length;
+        if (length > 0) {
+            state = mix(first, state);
+        }
+        if (length > Long.BYTES) {
+            state = mix(second, state);
+        }
+        return finish(state);
+    }
+
+    private long mix(long word, long state) {
+        long a = word ^ wordSecret;
+        long b = state ^ stateSecret;
+        return Math.multiplyHigh(a, b) ^ (a * b);
+    }
+
+    private int finish(long state) {
+        long hash = Math.multiplyHigh(state, finalSecret) ^ (state * finalSecret);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long splitMix(long seed) {
+        long z = seed * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Comparator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The order of stations in all results: by Unicode code point, which is the unsigned byte order of the UTF-8 encoded
+ * names. This allows sorting station names as bytes, like {@link ResultSnapshot} and {@link RangeMerger} do, and yields
+ * the same order for {@code String} keys. {@link String#compareTo(String)} differs from it for names with characters
+ * beyond the Basic Multilingual Plane, which it orders by their UTF-16 surrogates, before characters from U+E000.
+ */
+public final class StationOrder {
+
+    public static final Comparator<String> COMPARATOR = StationOrder::compare;
+
+    private StationOrder() {
+    }
+
+    public static int compare(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return codeUnitOrder(x) - codeUnitOrder(y);
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Returns a new, empty map sorted in station order.
+     */
+    public static <V> SortedMap<String, V> newSortedMap() {
+        return new TreeMap<>(COMPARATOR);
+    }
+
+    /**
+     * Returns the results sorted in station order, copying them if they are sorted differently, e.g. by
+     * {@link String#compareTo(String)}.
+     */
+    public static SortedMap<String, StationStats> sorted(SortedMap<String, StationStats> results) {
+        if (results.comparator() == COMPARATOR) {
+            return results;
+        }
+        SortedMap<String, StationStats> sorted = newSortedMap();
+        sorted.putAll(results);
+        return sorted;
+    }
+
+    /**
+     * Moves the surrogates above all other UTF-16 code units, so that code units compare like the code points they
+     * (start to) encode.
+     */
+    private static int codeUnitOrder(char c) {
+        if (c < Character.MIN_SURROGATE) {
+            return c;
+        }
+        return c <= Character.MAX_SURROGATE ? c + 0x2000 : c - 0x800;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Aggregated statistics of a single station. All values are kept as integers in tenths of a degree, i.e. multiplied by 10.
+ * Optionally, the stats also keep a {@link TemperatureHistogram} for percentiles; it is dropped when stats without one are
+ * merged in, as the percentiles of the combined measurements are unknown then.
+ */
+public final class StationStats {
+
+    int min;
+    int max;
+    long sum;
+    long count;
+    TemperatureHistogram histogram;
+
+    public StationStats() {
+        this.min = Integer.MAX_VALUE;
+        this.max = Integer.MIN_VALUE;
+    }
+
+    /**
+     * @param histogram whether to keep a histogram of the measurements
+     */
+    public StationStats(boolean histogram) {
+        this(histogram ? new TemperatureHistogram() : null);
+    }
+
+    /**
+     * @param histogram the histogram to keep the measurements in, or {@code null}
+     */
+    StationStats(TemperatureHistogram histogram) {
+        this();
+        this.histogram = histogram;
+    }
+
+    public StationStats(int min, int max, long sum, long count) {
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public void add(int value) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+        if (histogram != null) {
+            histogram.add(value);
+        }
+    }
+
+    public StationStats merge(StationStats other) {
+        if (other.count > 0) {
+            if (other.histogram == null) {
+                histogram = null;
+            }
+            else if (histogram != null) {
+                histogram.merge(other.histogram);
+            }
+            else if (count == 0) {
+                histogram = other.histogram.copy();
+            }
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        count += other.count;
+        return this;
+    }
+
+    public int min() {
+        return min;
+    }
+
+    public int max() {
+        return max;
+    }
+
+    public long sum() {
+        return sum;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the mean rounded half up, see {@link ResultFormatter#mean(long, long)}.
+     */
+    public long mean() {
+        return ResultFormatter.mean(sum, count);
+    }
+
+    /**
+     * Returns the histogram of the measurements, or {@code null} if none was kept.
+     */
+    public TemperatureHistogram histogram() {
+        return histogram;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof StationStats other && min == other.min && max == other.max && sum == other.sum && count == other.count;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * min + max) + Long.hashCode(sum)) + Long.hashCode(count);
+    }
+
+    @Override
+    public String toString() {
+        return new ResultFormatter(64).stats(this).toString();
+    }
+}
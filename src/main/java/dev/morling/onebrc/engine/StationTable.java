@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Linear probing hash table from station name bytes to {@link StationStats}, used by one thread at a time. Names of up to
+ * 16 bytes are also kept inline as {@link ShortKey} words, so that they can be looked up without touching the name
+ * arrays. Optionally, the stations of a {@link StationCatalogue} are looked up by their perfect hash instead of probing.
+ */
+final class StationTable {
+
+    private static final int GROW_FACTOR = 4;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * The key length of a slot holding a name longer than {@link ShortKey#MAX_LENGTH}.
+     */
+    private static final int LONG_NAME = -1;
+
+    private byte[][] names;
+    private int[] hashes;
+    /**
+     * Per slot the length of a short name plus one, whose words are in {@link #keyWords}, {@link #LONG_NAME}, or 0 if
+     * the slot is empty.
+     */
+    private int[] keyLengths;
+    private long[] keyWords;
+    private StationStats[] stats;
+    private int limit;
+    private int size;
+    private long lookups;
+    private long probes;
+    private final boolean histograms;
+    private final TemperatureHistogram.Slab slab;
+    private final StationCatalogue catalogue;
+    private final StationStats[] catalogued;
+
+    StationTable() {
+        this(1024);
+    }
+
+    StationTable(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param histograms whether the stats of the stations keep a {@link TemperatureHistogram}
+     */
+    StationTable(boolean histograms) {
+        this(1024, histograms);
+    }
+
+    StationTable(int capacity, boolean histograms) {
+        this(capacity, histograms, null);
+    }
+
+    /**
+     * @param catalogue the known stations, which are looked up without probing, or {@code null}
+     */
+    StationTable(boolean histograms, StationCatalogue catalogue) {
+        this(1024, histograms, catalogue);
+    }
+
+    StationTable(int capacity, boolean histograms, StationCatalogue catalogue) {
+        this.histograms = histograms;
+        this.slab = histograms ? new TemperatureHistogram.Slab() : null;
+        this.catalogue = catalogue;
+        this.catalogued = catalogue != null ? new StationStats[catalogue.size()] : null;
+        allocate(Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean histograms() {
+        return histograms;
+    }
+
+    /**
+     * Returns the statistics of the given station, adding the station if it isn't present yet.
+     */
+    StationStats get(byte[] name, int offset, int length, int hash) {
+        if (catalogue != null) {
+            int slot = catalogue.slot(name, offset, length);
+            if (slot >= 0) {
+                StationStats known = catalogued[slot];
+                if (known != null) {
+                    if (EngineMetrics.ENABLED) {
+                        lookups++;
+                    }
+                    return known;
+                }
+                // the first lookup adds the station to the table like any other, so that it is merged and listed alike
+                return catalogued[slot] = probe(name, offset, length, hash);
+            }
+        }
+        return probe(name, offset, length, hash);
+    }
+
+    /**
+     * Returns the statistics of the station with the given {@link ShortKey} words, adding the station if it isn't present
+     * yet. The same as {@link #get(byte[], int, int, int)} for the bytes of the name and the same hash, but the name is
+     * only compared by its words, also in the catalogue.
+     */
+    StationStats get(long first, long second, int length, int hash) {
+        if (catalogue != null) {
+            int slot = catalogue.slot(first, second, length);
+            if (slot >= 0) {
+                StationStats known = catalogued[slot];
+                if (known != null) {
+                    if (EngineMetrics.ENABLED) {
+                        lookups++;
+                    }
+                    return known;
+                }
+                return catalogued[slot] = probe(first, second, length, hash);
+            }
+        }
+        return probe(first, second, length, hash);
+    }
+
+    /**
+     * Returns the statistics of the given station, or {@code null} if it isn't present.
+     */
+    StationStats find(byte[] name, int offset, int length, int hash) {
+        int mask = names.length - 1;
+        for (int index = hash & mask; names[index] != null; index = (index + 1) & mask) {
+            byte[] candidate = names[index];
+            if (hashes[index] == hash && Arrays.equals(candidate, 0, candidate.length, name, offset, offset + length)) {
+                return stats[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the lookups and probes since the last call to the {@link EngineMetrics} of the current thread.
+     */
+    void recordMetrics() {
+        EngineMetrics.lookups(lookups, probes);
+        lookups = 0;
+        probes = 0;
+    }
+
+    /**
+     * Removes all stations, keeping the current capacity.
+     */
+    void clear() {
+        Arrays.fill(names, null);
+        Arrays.fill(stats, null);
+        Arrays.fill(keyLengths, 0);
+        if (catalogued != null) {
+            Arrays.fill(catalogued, null);
+        }
+        size = 0;
+    }
+
+    void merge(byte[] name, int hash, StationStats value) {
+        get(name, 0, name.length, hash).merge(value);
+    }
+
+    void mergeInto(StationTable target) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                target.merge(names[i], hashes[i], stats[i]);
+            }
+        }
+    }
+
+    /**
+     * Merges the stations whose {@link RangeMerger#prefix prefix} is within {@code [fromPrefix, toPrefix)} into the target.
+     */
+    void mergeInto(StationTable target, int fromPrefix, int toPrefix) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                int prefix = RangeMerger.prefix(names[i]);
+                if (prefix >= fromPrefix && prefix < toPrefix) {
+                    target.merge(names[i], hashes[i], stats[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the stations per {@link RangeMerger#prefix prefix} of their name.
+     */
+    void countPrefixes(int[] counts) {
+        for (byte[] name : names) {
+            if (name != null) {
+                counts[RangeMerger.prefix(name)]++;
+            }
+        }
+    }
+
+    /**
+     * Copies the names and statistics of all stations into the arrays, in table order, returning their number.
+     */
+    int copyTo(byte[][] targetNames, StationStats[] targetStats) {
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                targetNames[count] = names[i];
+                targetStats[count++] = stats[i];
+            }
+        }
+        return count;
+    }
+
+    void mergeInto(Map<String, StationStats> target) {
+        forEach((name, value) -> target.merge(name, value, StationStats::merge));
+    }
+
+    void writeTo(ResultSnapshot.Writer writer) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                StationStats value = stats[i];
+                writer.add(names[i], 0, names[i].length, value.min, value.max, value.sum, value.count);
+            }
+        }
+    }
+
+    void forEach(BiConsumer<String, StationStats> consumer) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                consumer.accept(new String(names[i], StandardCharsets.UTF_8), stats[i]);
+            }
+        }
+    }
+
+    private StationStats probe(byte[] name, int offset, int length, int hash) {
+        int mask = names.length - 1;
+        int index = hash & mask;
+        if (EngineMetrics.ENABLED) {
+            lookups++;
+        }
+
+        while (true) {
+            if (EngineMetrics.ENABLED) {
+                probes++;
+            }
+            byte[] candidate = names[index];
+
+            if (candidate == null) {
+                return add(index, Arrays.copyOfRange(name, offset, offset + length), hash);
+            }
+
+            if (hashes[index] == hash && Arrays.equals(candidate, 0, candidate.length, name, offset, offset + length)) {
+                return stats[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private StationStats probe(long first, long second, int length, int hash) {
+        int mask = names.length - 1;
+        int index = hash & mask;
+        if (EngineMetrics.ENABLED) {
+            lookups++;
+        }
+
+        while (true) {
+            if (EngineMetrics.ENABLED) {
+                probes++;
+            }
+            int keyLength = keyLengths[index];
+
+            if (keyLength == 0) {
+                return add(index, ShortKey.toBytes(first, second, length), hash);
+            }
+
+            if (keyLength == length + 1 && hashes[index] == hash && keyWords[2 * index] == first && keyWords[2 * index + 1] == second) {
+                return stats[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private StationStats add(int index, byte[] name, int hash) {
+        names[index] = name;
+        hashes[index] = hash;
+        if (name.length <= ShortKey.MAX_LENGTH) {
+            keyLengths[index] = name.length + 1;
+            keyWords[2 * index] = ShortKey.first(name, 0, name.length);
+            keyWords[2 * index + 1] = ShortKey.second(name, 0, name.length);
+        }
+        else {
+            keyLengths[index] = LONG_NAME;
+        }
+        StationStats added = stats[index] = new StationStats(slab != null ? slab.allocate() : null);
+        if (++size >= limit) {
+            grow();
+        }
+        return added;
+    }
+
+    private void grow() {
+        byte[][] oldNames = names;
+        int[] oldHashes = hashes;
+        int[] oldKeyLengths = keyLengths;
+        long[] oldKeyWords = keyWords;
+        StationStats[] oldStats = stats;
+
+        allocate(oldNames.length * GROW_FACTOR);
+        EngineMetrics.resized("StationTable", oldNames.length, names.length);
+
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int index = oldHashes[i] & mask;
+                while (names[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                names[index] = oldNames[i];
+                hashes[index] = oldHashes[i];
+                keyLengths[index] = oldKeyLengths[i];
+                keyWords[2 * index] = oldKeyWords[2 * i];
+                keyWords[2 * index + 1] = oldKeyWords[2 * i + 1];
+                stats[index] = oldStats[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        names = new byte[capacity][];
+        hashes = new int[capacity];
+        keyLengths = new int[capacity];
+        keyWords = new long[2 * capacity];
+        stats = new StationStats[capacity];
+        limit = (int) (capacity * LOAD_FACTOR);
+    }
+}
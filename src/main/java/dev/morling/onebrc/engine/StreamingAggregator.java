@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates measurements read from any {@link ReadableByteChannel}, e.g. stdin, a FIFO or a socket, so that the input can
+ * come from a decompressor or over the network instead of from a file which can be mapped.
+ * <p>
+ * Like the pipeline of {@code CalculateAverage_gabrielreid}, the input is read into a fixed pool of blocks of
+ * {@link EngineOptions#segmentSize()} bytes, handed over through {@link LinkedBlockingDeque}s: the calling thread fills free
+ * blocks while the worker threads parse full ones, so reading overlaps with parsing, and memory is bounded by the
+ * {@code parallelism + 2} blocks. The incomplete last line of a block is moved to the start of the next block before the
+ * block is handed over, so each block contains complete lines only.
+ * <p>
+ * Usage: {@code StreamingAggregator [file]}, reading from stdin if no file (or {@code -}) is given.
+ */
+public class StreamingAggregator {
+
+    /**
+     * Marks the end of the input for the workers.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * Wakes up the reader waiting for a free block after a worker failed.
+     */
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    private final EngineOptions options;
+
+    public StreamingAggregator(EngineOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: StreamingAggregator [file]");
+            System.exit(1);
+        }
+
+        StreamingAggregator aggregator = new StreamingAggregator(EngineOptions.defaults());
+        if (args.length == 0 || args[0].equals("-")) {
+            try (FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+                System.out.println(aggregator.aggregate(in));
+            }
+        }
+        else {
+            try (FileChannel in = FileChannel.open(Path.of(args[0]), StandardOpenOption.READ)) {
+                System.out.println(aggregator.aggregate(in));
+            }
+        }
+    }
+
+    /**
+     * Reads the channel up to its end and aggregates all measurements. The channel is not closed.
+     */
+    public SortedMap<String, StationStats> aggregate(ReadableByteChannel in) throws IOException {
+        int workerCount = options.parallelism();
+        int blockCount = workerCount + 2;
+
+        LinkedBlockingDeque<ByteBuffer> freeBlocks = new LinkedBlockingDeque<>(blockCount);
+        LinkedBlockingDeque<ByteBuffer> fullBlocks = new LinkedBlockingDeque<>(blockCount + workerCount);
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks.add(ByteBuffer.allocateDirect(options.segmentSize()).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        StationTable[] tables = new StationTable[workerCount];
+        Thread[] workers = new Thread[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            StationTable table = tables[i] = new StationTable(options.histograms(), options.catalogue());
+            workers[i] = new Thread(() -> {
+                byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+                try {
+                    for (ByteBuffer block; (block = fullBlocks.take()) != END;) {
+                        try {
+                            EngineMetrics.StageEvent parse = EngineMetrics.begin(EngineMetrics.Stage.PARSE);
+                            MappedEngine.aggregateLines(block, 0, block.limit() - 1, table, name, options.stationHash());
+                            EngineMetrics.end(parse, block.limit());
+                        }
+                        finally {
+                            freeBlocks.add(block.clear());
+                        }
+                    }
+                    table.recordMetrics();
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    freeBlocks.offerFirst(FAILED);
+                }
+            }, "aggregator-" + i);
+            workers[i].start();
+        }
+
+        try {
+            read(in, freeBlocks, fullBlocks, failure);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+        catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        finally {
+            for (int i = 0; i < workerCount; i++) {
+                fullBlocks.add(END);
+            }
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while aggregating", e);
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Aggregation failed", failure.get());
+        }
+
+        return RangeMerger.merge(tables, workerCount);
+    }
+
+    private static void read(ReadableByteChannel in, LinkedBlockingDeque<ByteBuffer> freeBlocks, LinkedBlockingDeque<ByteBuffer> fullBlocks,
+                             AtomicReference<Throwable> failure)
+            throws IOException, InterruptedException {
+        ByteBuffer block = freeBlocks.take();
+
+        while (failure.get() == null) {
+            EngineMetrics.StageEvent read = EngineMetrics.begin(EngineMetrics.Stage.MAP);
+            boolean eof = false;
+            while (block.hasRemaining() && !eof) {
+                eof = in.read(block) < 0;
+            }
+            EngineMetrics.end(read, 0);
+
+            int filled = block.position();
+            if (eof) {
+                if (filled > 0) {
+                    fullBlocks.put(block.flip());
+                }
+                return;
+            }
+
+            int end = filled;
+            while (end > 0 && block.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                throw new IOException("No line break within " + filled + " bytes, the block size is too small");
+            }
+
+            ByteBuffer next = freeBlocks.take();
+            if (next == FAILED) {
+                return;
+            }
+            next.put(0, block, end, filled - end).position(filled - end);
+            fullBlocks.put(block.limit(end).position(0));
+            block = next;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Branch-free decoding of a temperature from the eight bytes following the ';' of a line, read as one little-endian
+ * {@code long} (SWAR, SIMD within a register). The position of the dot and the sign are derived with bit operations, and
+ * the digits are combined by a single multiplication, so the cost doesn't depend on the value.
+ * <p>
+ * Temperatures must have the format of the challenge, i.e. an optional '-', one or two integer digits, '.' and one
+ * fractional digit. Bytes after the temperature are ignored, so the word may extend beyond the line.
+ */
+public final class TemperatureDecoder {
+
+    /**
+     * Bit 4 of the bytes 1 to 3, where the dot can be. It is cleared for '.' (0x2E) but set for all digits (0x30 to 0x39).
+     */
+    private static final long DOT_BITS = 0x10101000L;
+
+    /**
+     * The digits after aligning the word, at bytes 1, 2 and 4, so that one multiplication sums them up with the weights
+     * 100, 10 and 1 at byte 4.
+     */
+    private static final long DIGIT_MASK = 0x0F000F0F00L;
+    private static final long DIGIT_WEIGHTS = (100L << 24) + (10L << 16) + 1;
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private TemperatureDecoder() {
+    }
+
+    /**
+     * Returns the temperature at the start of the word in tenths of a degree.
+     */
+    public static int decode(long word) {
+        int dot = Long.numberOfTrailingZeros(~word & DOT_BITS);
+        // all ones for a leading '-' (0x2D), whose bit 4 is cleared, all zeros for a digit
+        long sign = (~word << 59) >> 63;
+        long digits = ((word & ~(sign & 0xFF)) << (28 - dot)) & DIGIT_MASK;
+        long absolute = ((digits * DIGIT_WEIGHTS) >>> 32) & 0x3FF;
+        return (int) ((absolute ^ sign) - sign);
+    }
+
+    /**
+     * Returns the number of bytes of the temperature at the start of the word, i.e. 3 to 5.
+     */
+    public static int length(long word) {
+        return (Long.numberOfTrailingZeros(~word & DOT_BITS) >>> 3) + 2;
+    }
+
+    /**
+     * Reads the word starting at {@code offset}. Bytes at or after {@code limit} are read as zeros.
+     */
+    public static long word(byte[] data, int offset, int limit) {
+        if (offset + Long.BYTES <= limit) {
+            return (long) LONG_VIEW.get(data, offset);
+        }
+
+        long word = 0;
+        for (int i = limit - 1; i >= offset; i--) {
+            word = (word << 8) | (data[i] & 0xFF);
+        }
+        return word;
+    }
+
+    /**
+     * Reads the word starting at {@code offset}, regardless of the buffer's byte order. Bytes at or after the limit of the
+     * buffer are read as zeros.
+     */
+    public static long word(ByteBuffer buffer, int offset) {
+        if (offset + Long.BYTES <= buffer.limit()) {
+            long word = buffer.getLong(offset);
+            return buffer.order() == ByteOrder.LITTLE_ENDIAN ? word : Long.reverseBytes(word);
+        }
+
+        long word = 0;
+        for (int i = buffer.limit() - 1; i >= offset; i--) {
+            word = (word << 8) | (buffer.get(i) & 0xFF);
+        }
+        return word;
+    }
+}
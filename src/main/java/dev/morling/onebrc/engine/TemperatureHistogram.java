@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Arrays;
+
+/**
+ * Exact distribution of the measurements of one station. Temperatures are tenths of a degree within [-99.9, 99.9], so
+ * one counter per possible value, 1999 in total, is enough to answer any percentile exactly, and two histograms are
+ * merged by adding their counters.
+ * <p>
+ * The counters are 16 bit wide, so that the histograms of a few hundred stations (4 KB each) stay in the L2 cache while
+ * rows are added; every 65536 measurements of the same value, a counter carries into a {@code long[]} which is only
+ * allocated then. The histograms of a {@link StationTable} take their counters from a {@link Slab}, so that they aren't
+ * allocated in between the {@link StationStats} of the stations, which would spread these over the heap.
+ */
+public final class TemperatureHistogram {
+
+    public static final int MIN_VALUE = -999;
+    public static final int MAX_VALUE = 999;
+    static final int BINS = MAX_VALUE - MIN_VALUE + 1;
+
+    private static final long CARRY = 1 << Character.SIZE;
+
+    private final char[] counts;
+    private final int base;
+    private long[] carries;
+
+    public TemperatureHistogram() {
+        this(new char[BINS], 0);
+    }
+
+    private TemperatureHistogram(char[] counts, int base) {
+        this.counts = counts;
+        this.base = base;
+    }
+
+    /**
+     * Allocates the counters of many histograms at once, one histogram after the other in arrays of up to
+     * {@link #MAX_HISTOGRAMS} histograms. The arrays start small and double, so that tables of a few stations don't take
+     * much more memory than their histograms. Not thread-safe.
+     */
+    static final class Slab {
+
+        static final int MIN_HISTOGRAMS = 4;
+        static final int MAX_HISTOGRAMS = 64;
+
+        private char[] counts = new char[0];
+        private int next;
+
+        TemperatureHistogram allocate() {
+            if (next == counts.length) {
+                int histograms = Math.max(MIN_HISTOGRAMS, Math.min(MAX_HISTOGRAMS, 2 * counts.length / BINS));
+                counts = new char[histograms * BINS];
+                next = 0;
+            }
+            TemperatureHistogram histogram = new TemperatureHistogram(counts, next);
+            next += BINS;
+            return histogram;
+        }
+    }
+
+    /**
+     * Adds a measurement in tenths of a degree.
+     */
+    public void add(int value) {
+        int bin = value - MIN_VALUE;
+        if (++counts[base + bin] == 0) {
+            carry(bin);
+        }
+    }
+
+    public TemperatureHistogram merge(TemperatureHistogram other) {
+        if (carries == null && other.carries == null && !overflows(other)) {
+            // the common case, a plain loop over the counters which the JIT vectorizes
+            char[] otherCounts = other.counts;
+            int otherBase = other.base;
+            for (int i = 0; i < BINS; i++) {
+                counts[base + i] += otherCounts[otherBase + i];
+            }
+            return this;
+        }
+        for (int i = 0; i < BINS; i++) {
+            long merged = count(i) + other.count(i);
+            if (merged >= CARRY && carries == null) {
+                carries = new long[BINS];
+            }
+            counts[base + i] = (char) (merged & (CARRY - 1));
+            if (carries != null) {
+                carries[i] = merged - counts[base + i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns a copy with counters of its own, for merging into without changing this histogram.
+     */
+    TemperatureHistogram copy() {
+        TemperatureHistogram copy = new TemperatureHistogram(Arrays.copyOfRange(counts, base, base + BINS), 0);
+        copy.carries = carries != null ? carries.clone() : null;
+        return copy;
+    }
+
+    /**
+     * Whether adding the counters of the other histogram would carry in any bin.
+     */
+    private boolean overflows(TemperatureHistogram other) {
+        char[] otherCounts = other.counts;
+        int otherBase = other.base;
+        int max = 0;
+        for (int i = 0; i < BINS; i++) {
+            max = Math.max(max, counts[base + i] + otherCounts[otherBase + i]);
+        }
+        return max >= CARRY;
+    }
+
+    /**
+     * Returns the number of measurements.
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BINS; i++) {
+            count += count(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the given percentile in tenths of a degree, by the nearest-rank method: the smallest measurement such that
+     * at least {@code percentile} percent of all measurements are less than or equal to it.
+     *
+     * @throws IllegalStateException if the histogram is empty
+     */
+    public int percentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be within (0, 100]: " + percentile);
+        }
+        long count = count();
+        if (count == 0) {
+            throw new IllegalStateException("No measurements");
+        }
+
+        long rank = (long) Math.ceil(percentile * count / 100);
+        long seen = 0;
+        for (int i = 0; i < BINS; i++) {
+            seen += count(i);
+            if (seen >= rank) {
+                return i + MIN_VALUE;
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    public int median() {
+        return percentile(50);
+    }
+
+    private long count(int bin) {
+        return carries != null ? carries[bin] + counts[base + bin] : counts[base + bin];
+    }
+
+    private void carry(int bin) {
+        if (carries == null) {
+            carries = new long[BINS];
+        }
+        carries[bin] += CARRY;
+    }
+}
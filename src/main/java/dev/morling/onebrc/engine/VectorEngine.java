@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Variant of the {@link OffHeapEngine} which tokenizes each segment with the {@link LineSplitter} and then works through
+ * the batches of lines. As the name length is known up front, station names are hashed from their first and last eight
+ * bytes instead of byte by byte. Needs {@code --add-modules jdk.incubator.vector} and {@code --enable-preview}.
+ */
+public class VectorEngine extends OffHeapEngine {
+
+    private static final int BATCH_SIZE = 1024;
+
+    @Override
+    public String name() {
+        return "vector";
+    }
+
+    @Override
+    void aggregateSegment(MemorySegment file, long start, long end, OffHeapStationTable table, StationHash stationHash) {
+        long size = file.byteSize();
+        long position = start > 0 ? nextLineStart(file, start) : 0;
+        long limit = Math.min(end, size - 1);
+        // the last line starting within the segment ends before this
+        long splitEnd = Math.min(size, end + MappedEngine.MAX_LINE_LENGTH);
+        LineSplitter.Batch batch = new LineSplitter.Batch(BATCH_SIZE);
+
+        while (position <= limit) {
+            position = LineSplitter.split(file, position, splitEnd, batch);
+            if (batch.size() == 0) {
+                return;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                long lineStart = batch.lineStart(i);
+                if (lineStart > limit) {
+                    return;
+                }
+                long semicolon = batch.semicolon(i);
+                int length = (int) (semicolon - lineStart);
+                int hash = stationHash != null ? stationHash.hash(file, lineStart, length) : hash(file, lineStart, semicolon, length);
+                table.add(file, lineStart, length, hash, TemperatureDecoder.decode(temperatureWord(file, semicolon + 1)));
+            }
+        }
+    }
+
+    private static int hash(MemorySegment file, long nameStart, long semicolon, int length) {
+        long first;
+        long last;
+        if (length >= Long.BYTES) {
+            first = file.get(ValueLayout.JAVA_LONG_UNALIGNED, nameStart);
+            last = file.get(ValueLayout.JAVA_LONG_UNALIGNED, semicolon - Long.BYTES);
+        }
+        else {
+            first = 0;
+            for (long i = nameStart; i < semicolon; i++) {
+                first = (first << 8) | (file.get(ValueLayout.JAVA_BYTE, i) & 0xFF);
+            }
+            last = 0;
+        }
+
+        long hash = (first ^ Long.rotateLeft(last, 29)) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) ^ length;
+    }
+}
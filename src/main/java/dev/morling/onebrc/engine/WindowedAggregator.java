@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.SortedMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Statistics of a sliding window over the most recent measurements, either the last N rows or the measurements added
+ * within the last period of time. The window is split into a ring of panes, each a {@link StationTable} with the partial
+ * statistics of {@code 1 / panes} of the window. Once the newest pane is full, the oldest one is cleared (keeping its
+ * capacity) and takes the next measurements, so the window advances by one pane at a time and raw lines never need to be
+ * kept or read again. The statistics of the window are the merge of its panes, which takes {@code O(panes)} table merges.
+ * With one pane, the window is tumbling: it covers consecutive, non-overlapping ranges.
+ * <p>
+ * For windows of rows, the panes are cut exactly after every {@code windowRows / panes} rows. For windows of time, the
+ * lines passed to one call of {@link #aggregate(ByteBuffer, int, int)} are added to the pane of the time of the call, and
+ * panes expire with the time passing, also without new measurements.
+ * <p>
+ * Instances must be used by one thread at a time.
+ * <p>
+ * Usage: {@code WindowedAggregator <window rows> <panes> [file]}, printing the window each time a pane is complete, and
+ * reading from stdin if no file (or {@code -}) is given.
+ */
+public final class WindowedAggregator {
+
+    /**
+     * Receives the statistics of the window each time its newest pane is complete.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * @param pane index of the pane just completed, counting from 0 for the first pane
+         * @param window the statistics of the window ending with that pane
+         */
+        void windowCompleted(long pane, SortedMap<String, StationStats> window);
+    }
+
+    private static final int READ_BLOCK_SIZE = 1024 * 1024;
+
+    private final StationHash stationHash;
+    private final boolean histograms;
+    private final StationTable[] panes;
+    private final long[] paneIndexes;
+    private final long paneRows;
+    private final long paneNanos;
+    private final LongSupplier clock;
+    private final byte[] name = new byte[MappedEngine.MAX_LINE_LENGTH];
+    private Listener listener;
+    private long rows;
+    private long current = -1;
+
+    private WindowedAggregator(EngineOptions options, int panes, long paneRows, long paneNanos, LongSupplier clock) {
+        if (panes < 1) {
+            throw new IllegalArgumentException("At least one pane is required");
+        }
+        this.stationHash = options.stationHash();
+        this.histograms = options.histograms();
+        this.panes = new StationTable[panes];
+        this.paneIndexes = new long[panes];
+        for (int i = 0; i < panes; i++) {
+            this.panes[i] = new StationTable(histograms);
+            this.paneIndexes[i] = -1;
+        }
+        this.paneRows = paneRows;
+        this.paneNanos = paneNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns an aggregator of the last {@code windowRows} rows, advancing every {@code windowRows / panes} rows.
+     */
+    public static WindowedAggregator ofRows(EngineOptions options, long windowRows, int panes) {
+        if (windowRows < panes || windowRows % panes != 0) {
+            throw new IllegalArgumentException("The window of " + windowRows + " rows can't be split into " + panes + " panes");
+        }
+        return new WindowedAggregator(options, panes, windowRows / panes, 0, null);
+    }
+
+    /**
+     * Returns an aggregator of the measurements added within the last {@code window}, advancing every
+     * {@code window / panes}.
+     */
+    public static WindowedAggregator ofDuration(EngineOptions options, Duration window, int panes) {
+        return ofDuration(options, window, panes, System::nanoTime);
+    }
+
+    static WindowedAggregator ofDuration(EngineOptions options, Duration window, int panes, LongSupplier clock) {
+        long paneNanos = window.toNanos() / panes;
+        if (paneNanos <= 0) {
+            throw new IllegalArgumentException("The window of " + window + " can't be split into " + panes + " panes");
+        }
+        return new WindowedAggregator(options, panes, 0, paneNanos, clock);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: WindowedAggregator <window rows> <panes> [file]");
+            System.exit(1);
+        }
+
+        WindowedAggregator aggregator = ofRows(EngineOptions.defaults(), Long.parseLong(args[0]), Integer.parseInt(args[1]));
+        ResultFormatter formatter = new ResultFormatter();
+        aggregator.setListener((pane, window) -> {
+            long first = Math.max(0, pane - aggregator.panes.length + 1) * aggregator.paneRows;
+            formatter.line("# rows " + first + " to " + (Math.min((pane + 1) * aggregator.paneRows, aggregator.rows) - 1)).lines(window);
+            try {
+                formatter.writeTo(System.out);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        if (args.length == 2 || args[2].equals("-")) {
+            try (FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+                aggregator.aggregate(in);
+            }
+        }
+        else {
+            try (FileChannel in = FileChannel.open(Path.of(args[2]), StandardOpenOption.READ)) {
+                aggregator.aggregate(in);
+            }
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Aggregates the lines read from the channel up to its end. A last pane which isn't complete is reported to the
+     * listener as well, so that no rows are left out of the reported windows.
+     */
+    public void aggregate(ReadableByteChannel in) throws IOException {
+        LineBlocks.read(in, ByteBuffer.allocate(READ_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN), true, (block, end) -> aggregate(block, 0, end));
+        if (listener != null && current >= 0 && (paneRows == 0 || rows % paneRows != 0)) {
+            listener.windowCompleted(current, window(current));
+        }
+    }
+
+    /**
+     * Aggregates the lines within {@code [offset, end)} of the buffer, where {@code end} is right after a line break.
+     */
+    public void aggregate(ByteBuffer buffer, int offset, int end) {
+        if (paneRows == 0) {
+            StationTable pane = pane(clock.getAsLong() / paneNanos);
+            while (offset < end) {
+                offset = MappedEngine.aggregateLine(buffer, offset, pane, name, stationHash);
+                rows++;
+            }
+            return;
+        }
+
+        while (offset < end) {
+            StationTable pane = pane(rows / paneRows);
+            long paneEnd = (rows / paneRows + 1) * paneRows;
+            while (offset < end && rows < paneEnd) {
+                offset = MappedEngine.aggregateLine(buffer, offset, pane, name, stationHash);
+                rows++;
+            }
+            if (rows == paneEnd) {
+                completed(rows / paneRows - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the current window.
+     */
+    public SortedMap<String, StationStats> window() {
+        return window(paneRows == 0 ? clock.getAsLong() / paneNanos : Math.max(current, 0));
+    }
+
+    /**
+     * Returns the number of rows aggregated so far, including those which have left the window.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    private StationTable pane(long index) {
+        if (index != current) {
+            if (paneRows == 0 && current >= 0) {
+                completed(current);
+            }
+            current = index;
+        }
+        int slot = (int) (index % panes.length);
+        if (paneIndexes[slot] != index) {
+            panes[slot].clear();
+            paneIndexes[slot] = index;
+        }
+        return panes[slot];
+    }
+
+    private void completed(long pane) {
+        if (listener != null) {
+            listener.windowCompleted(pane, window(pane));
+        }
+    }
+
+    /**
+     * Merges the panes of the window ending with the given pane.
+     */
+    private SortedMap<String, StationStats> window(long last) {
+        StationTable window = new StationTable(histograms);
+        for (int i = 0; i < panes.length; i++) {
+            if (paneIndexes[i] >= 0 && paneIndexes[i] <= last && paneIndexes[i] > last - panes.length) {
+                panes[i].mergeInto(window);
+            }
+        }
+        return MappedEngine.toSortedMap(window);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AggregationServiceTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = { "Hamburg;12.0\nBogus\nBerlin;1.0\n", "Oslo;abc", "Oslo;1.0\n;1.0\n", "Oslo;123.4\n", "Oslo;1.\n", "Oslo;-1.2.\n",
+            "Oslo;-\n", "Oslo;\n", "\n", "Oslo;1.0;2.0\n" })
+    void rejectsInvalidRequestAsWhole(String request) throws IOException {
+        try (AggregationService service = new AggregationService(EngineOptions.defaults())) {
+            assertThatThrownBy(() -> service.ingestRequest(channel(request))).isInstanceOf(IllegalArgumentException.class);
+            assertThat(service.stations()).isEmpty();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 100, 101 })
+    void checksNameLength(int length) throws IOException {
+        try (AggregationService service = new AggregationService(EngineOptions.defaults())) {
+            String request = "x".repeat(length) + ";1.0\n";
+            if (length <= 100) {
+                service.ingestRequest(channel(request));
+                assertThat(service.stations()).hasSize(1);
+            }
+            else {
+                assertThatThrownBy(() -> service.ingestRequest(channel(request))).hasMessageContaining("101 bytes");
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "Hamburg;12.0\nBerlin;-1.0\nHamburg;-99.9\nBerlin;0.0\n", "Hamburg;12.0\r\nBerlin;-1.0\r\nHamburg;-99.9\r\nBerlin;0.0",
+            "Hamburg;12.0\nBerlin;-1.0\nHamburg;-99.9\nBerlin;0.0" })
+    void aggregatesValidRequest(String request) throws IOException {
+        try (AggregationService service = new AggregationService(EngineOptions.defaults())) {
+            assertThat(service.ingestRequest(channel(request))).isGreaterThanOrEqualTo(request.length());
+            assertThat(new ResultFormatter().lines(service.stations()).toString()).isEqualTo("Berlin=-1.0/-0.5/0.0\nHamburg=-99.9/-43.9/12.0\n");
+        }
+    }
+
+    @Test
+    void servesQueriesAndMeasurementsOverHttp() throws Exception {
+        try (AggregationService service = new AggregationService(EngineOptions.defaults())) {
+            InetSocketAddress address = service.startHttp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            AggregationClient client = new AggregationClient(URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/"));
+
+            assertThat(client.stations()).isEmpty();
+            client.push("Hamburg;12.0\nSão Paulo;-1.0\nHamburg;-99.9\n");
+            client.push("São Paulo;0.0");
+
+            assertThat(client.stations()).isEqualTo("Hamburg=-99.9/-43.9/12.0\nSão Paulo=-1.0/-0.5/0.0\n");
+            assertThat(client.station("Hamburg")).isEqualTo("-99.9/-43.9/12.0");
+            assertThat(client.station("São Paulo")).isEqualTo("-1.0/-0.5/0.0");
+            assertThat(client.station("Berlin")).isNull();
+
+            assertThatThrownBy(() -> client.push("Berlin;1.0\nBogus\n")).isInstanceOf(IOException.class).hasMessageContaining("400");
+            assertThat(client.station("Berlin")).isNull();
+        }
+    }
+
+    private static ReadableByteChannel channel(String request) {
+        return Channels.newChannel(new ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)));
+    }
+}
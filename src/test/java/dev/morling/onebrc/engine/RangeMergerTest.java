@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RangeMergerTest {
+
+    @Test
+    void prefixesAreTheFirstTwoBytes() {
+        assertThat(RangeMerger.prefix(new byte[0])).isZero();
+        assertThat(RangeMerger.prefix(new byte[]{ 'a' })).isEqualTo('a' << 8);
+        assertThat(RangeMerger.prefix("ab".getBytes(StandardCharsets.UTF_8))).isEqualTo('a' << 8 | 'b');
+        assertThat(RangeMerger.prefix("\uFFFF".getBytes(StandardCharsets.UTF_8))).isEqualTo(0xEFBF);
+    }
+
+    @Test
+    void splitsEvenPrefixesEvenly() {
+        int[] counts = new int[RangeMerger.PREFIXES];
+        Arrays.fill(counts, 1);
+
+        int[] bounds = RangeMerger.bounds(counts, RangeMerger.PREFIXES, 4);
+
+        assertThat(bounds).containsExactly(0, 0x4000, 0x8000, 0xC000, RangeMerger.PREFIXES);
+    }
+
+    @Test
+    void leavesRangesEmptyForASinglePrefix() {
+        int[] counts = new int[RangeMerger.PREFIXES];
+        counts[0x4142] = 1000;
+
+        int[] bounds = RangeMerger.bounds(counts, 1000, 4);
+
+        assertValid(bounds, 4);
+        assertThat(bounds).containsExactly(0, 0x4143, 0x4143, 0x4143, RangeMerger.PREFIXES);
+    }
+
+    @Test
+    void splitsSkewedPrefixes() {
+        int[] counts = new int[RangeMerger.PREFIXES];
+        counts[0] = 1;
+        counts[0x6161] = 900;
+        counts[0x6162] = 50;
+        counts[0xF09F] = 49;
+        counts[RangeMerger.PREFIXES - 1] = 1;
+
+        int[] bounds = RangeMerger.bounds(counts, 1001, 3);
+
+        assertValid(bounds, 3);
+        assertThat(bounds).containsExactly(0, 0x6162, 0x6162, RangeMerger.PREFIXES);
+        assertThat(RangeMerger.bounds(counts, 1001, 1)).containsExactly(0, RangeMerger.PREFIXES);
+    }
+
+    @Test
+    void mergesSkewedStationsInOrder() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            names.add("Ha" + i);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            names.add(new StringBuilder().appendCodePoint(0x1F600 + i % 64).append(i).toString());
+            names.add("" + i);
+            names.add(String.valueOf((char) ('a' + i % 26)));
+        }
+        names.add("");
+
+        StationTable[] tables = new StationTable[3];
+        for (int t = 0; t < tables.length; t++) {
+            tables[t] = new StationTable();
+            for (int i = t; i < names.size(); i += 2) {
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                tables[t].get(name, 0, name.length, MappedEngine.hash(name, name.length, null)).add(i % 100);
+            }
+        }
+
+        SortedMap<String, StationStats> results = RangeMerger.merge(tables, 8);
+
+        SortedMap<String, StationStats> expected = StationOrder.newSortedMap();
+        for (StationTable table : tables) {
+            table.mergeInto(expected);
+        }
+        assertThat(results.comparator()).isSameAs(StationOrder.COMPARATOR);
+        assertThat(results.keySet()).containsExactlyElementsOf(expected.keySet());
+        assertThat(results.keySet()).containsExactlyElementsOf(names.stream().distinct()
+                .sorted((a, b) -> Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8))).toList());
+        expected.forEach((name, stats) -> assertThat(results.get(name).count()).as(name).isEqualTo(stats.count()));
+        assertThat(results.firstKey()).isEmpty();
+    }
+
+    private static void assertValid(int[] bounds, int ranges) {
+        assertThat(bounds).hasSize(ranges + 1);
+        assertThat(bounds[0]).isZero();
+        assertThat(bounds[ranges]).isEqualTo(RangeMerger.PREFIXES);
+        for (int i = 1; i < bounds.length; i++) {
+            assertThat(bounds[i]).isGreaterThanOrEqualTo(bounds[i - 1]);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SortedMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RunEngineTest {
+
+    private static final Path SAMPLE = Path.of("src/test/resources/samples/measurements-10.txt");
+
+    @Test
+    void keepsHistogramsOrRejectsPercentiles() throws IOException {
+        EngineOptions percentiles = EngineOptions.defaults().withHistograms(true);
+        for (AggregationEngine engine : Engines.all()) {
+            RunOptions options = RunOptions.of(engine.name(), SAMPLE).withEngineOptions(percentiles);
+            if (engine.supportsHistograms(false)) {
+                SortedMap<String, StationStats> results = RunEngine.aggregate(options);
+                assertThat(results.values()).as(engine.name()).isNotEmpty().allSatisfy(stats -> assertThat(stats.histogram()).isNotNull());
+            }
+            else {
+                assertThatThrownBy(() -> RunEngine.aggregate(options)).as(engine.name())
+                        .isInstanceOf(IllegalArgumentException.class)
+                        .hasMessageContaining("--statistics percentiles");
+            }
+        }
+    }
+}
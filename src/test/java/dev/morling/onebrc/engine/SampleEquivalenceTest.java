@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.SortedMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every registered {@link AggregationEngine} over the sample files, with the default options, with many threads and
+ * the smallest segment size, and on a stream, and compares the results with the expected output.
+ */
+class SampleEquivalenceTest {
+
+    private static final Path SAMPLES = Path.of("src/test/resources/samples");
+
+    private static final EngineOptions SMALL_SEGMENTS = new EngineOptions(7, 1024);
+
+    static Stream<Arguments> enginesAndSamples() throws IOException {
+        List<ServiceLoader.Provider<AggregationEngine>> engines = ServiceLoader.load(AggregationEngine.class).stream().toList();
+        List<Path> samples;
+        try (Stream<Path> files = Files.list(SAMPLES)) {
+            samples = files.filter(file -> file.getFileName().toString().endsWith(".txt")).sorted().toList();
+        }
+        assertThat(engines).isNotEmpty();
+        assertThat(samples).isNotEmpty();
+
+        return engines.stream()
+                .flatMap(engine -> samples.stream().map(sample -> Arguments.of(engine.get().name(), engine, sample)));
+    }
+
+    @ParameterizedTest(name = "{0} {2}")
+    @MethodSource("enginesAndSamples")
+    void aggregatesFile(String name, ServiceLoader.Provider<AggregationEngine> engine, Path sample) throws IOException {
+        assertThat(format(engine.get().aggregate(sample, EngineOptions.defaults()))).isEqualTo(expected(sample));
+    }
+
+    @ParameterizedTest(name = "{0} {2}")
+    @MethodSource("enginesAndSamples")
+    void aggregatesFileInSmallSegments(String name, ServiceLoader.Provider<AggregationEngine> engine, Path sample) throws IOException {
+        assertThat(format(engine.get().aggregate(sample, SMALL_SEGMENTS))).isEqualTo(expected(sample));
+    }
+
+    @ParameterizedTest(name = "{0} {2}")
+    @MethodSource("enginesAndSamples")
+    void aggregatesStream(String name, ServiceLoader.Provider<AggregationEngine> engine, Path sample) throws IOException {
+        try (ReadableByteChannel in = Channels.newChannel(Files.newInputStream(sample))) {
+            assertThat(format(engine.get().aggregate(in, SMALL_SEGMENTS))).isEqualTo(expected(sample));
+        }
+    }
+
+    private static String format(SortedMap<String, StationStats> results) {
+        return new ResultFormatter().text(StationOrder.sorted(results)).toString();
+    }
+
+    private static String expected(Path sample) throws IOException {
+        String file = sample.getFileName().toString();
+        return Files.readString(sample.resolveSibling(file.substring(0, file.length() - ".txt".length()) + ".out"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SegmentSchedulerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void coversRawRangeOnce() throws Exception {
+        SegmentScheduler scheduler = SegmentScheduler.of(10, 100_000, new EngineOptions(4, 1024));
+
+        assertCovered(claimAll(scheduler, 8), 10, 100_000);
+    }
+
+    @Test
+    void alignsSegmentsToLinesWhenClaimedConcurrently() throws Exception {
+        Random random = new Random(7);
+        StringBuilder lines = new StringBuilder();
+        while (lines.length() < 200_000) {
+            // mostly short lines, and some longer than a segment
+            int length = random.nextInt(20) == 0 ? 1000 + random.nextInt(3000) : random.nextInt(40);
+            lines.append("x".repeat(length)).append(";1.0\n");
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        Path file = Files.write(directory.resolve("lines.txt"), bytes);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int run = 0; run < 20; run++) {
+                SegmentScheduler scheduler = SegmentScheduler.lineAligned(channel, 0, bytes.length, new EngineOptions(8, 1024));
+                List<SegmentScheduler.Segment> segments = claimAll(scheduler, 8);
+
+                assertCovered(segments, 0, bytes.length);
+                for (SegmentScheduler.Segment segment : segments) {
+                    assertThat(bytes[(int) segment.end() - 1]).as("end of %s", segment).isEqualTo((byte) '\n');
+                }
+            }
+        }
+    }
+
+    private static List<SegmentScheduler.Segment> claimAll(SegmentScheduler scheduler, int threadCount) throws Exception {
+        List<SegmentScheduler.Segment> segments = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    for (SegmentScheduler.Segment segment; (segment = scheduler.next()) != null;) {
+                        segments.add(segment);
+                    }
+                }
+                catch (IOException e) {
+                    failures.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failures).isEmpty();
+        return segments;
+    }
+
+    private static void assertCovered(List<SegmentScheduler.Segment> segments, long start, long end) {
+        List<SegmentScheduler.Segment> sorted = new ArrayList<>(segments);
+        sorted.sort((a, b) -> Long.compare(a.start(), b.start()));
+        long position = start;
+        for (SegmentScheduler.Segment segment : sorted) {
+            assertThat(segment.start()).as("start of %s", segment).isEqualTo(position);
+            assertThat(segment.end()).as("end of %s", segment).isGreaterThan(segment.start());
+            position = segment.end();
+        }
+        assertThat(position).isEqualTo(end);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StationCatalogueTest {
+
+    @Test
+    void looksUpShortNamesByTheirWords() {
+        List<String> stations = new ArrayList<>();
+        for (int length = 1; length <= 24; length++) {
+            stations.add("x".repeat(length));
+            stations.add("Hamburg-Altona-Nord-West".substring(0, length));
+        }
+        stations.add("Zürich");
+        StationCatalogue catalogue = StationCatalogue.of(stations);
+
+        for (String station : stations) {
+            byte[] name = station.getBytes(StandardCharsets.UTF_8);
+            int slot = catalogue.slot(name, 0, name.length);
+            assertThat(slot).as(station).isNotNegative();
+            if (name.length <= ShortKey.MAX_LENGTH) {
+                long first = ShortKey.first(name, 0, name.length);
+                long second = ShortKey.second(name, 0, name.length);
+                assertThat(catalogue.slot(first, second, name.length)).as(station).isEqualTo(slot);
+            }
+        }
+    }
+
+    @Test
+    void missesUnknownNames() {
+        StationCatalogue catalogue = StationCatalogue.of(List.of("Hamburg", "Bulawayo", "Petropavlovsk-Kamchatsky"));
+
+        for (String station : List.of("", "Hamburg2", "hamburg", "Bulawayo;", "Petropavlovsk-Kamchatskx")) {
+            byte[] name = station.getBytes(StandardCharsets.UTF_8);
+            assertThat(catalogue.slot(name, 0, name.length)).as(station).isEqualTo(-1);
+            if (name.length <= ShortKey.MAX_LENGTH) {
+                assertThat(catalogue.slot(ShortKey.first(name, 0, name.length), ShortKey.second(name, 0, name.length), name.length)).as(station).isEqualTo(-1);
+            }
+        }
+    }
+}
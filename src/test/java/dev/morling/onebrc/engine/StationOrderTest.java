@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StationOrderTest {
+
+    private static final List<String> NAMES = List.of(
+            "", "a", "b", "ab", "A", "Z", "z", "\u00E9", "\u00FC", "\u00F8", "\u00DF", "\u07FF", "\u0800", "Hamburg", "Hamburg-Altona",
+            // the last characters before the surrogates, the private use area from U+E000 and the end of the BMP
+            "\uD7FF", "\uE000", "\uE000a", "\uFB01", "\uFF21", "\uFFFD", "\uFFFF",
+            // supplementary characters, encoded as surrogate pairs, as well as prefixes shorter than two bytes
+            "\uD800\uDC00", "\uD83D\uDE00", "\uD83D\uDE00a", "\uDBFF\uDFFF", "a\uD83D\uDE00", "a\uFFFF", "a\u0000");
+
+    @Test
+    void ordersLikeTheUtf8Bytes() {
+        for (String a : NAMES) {
+            for (String b : NAMES) {
+                assertCompare(a, b);
+            }
+        }
+    }
+
+    @Test
+    void ordersRandomNamesLikeTheUtf8Bytes() {
+        Random random = new Random(42);
+        int[] starts = { 0x20, 0x80, 0x800, 0xD7F0, 0xE000, 0xFFF0, 0x10000, 0x10FFF0 };
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                name.appendCodePoint(starts[random.nextInt(starts.length)] + random.nextInt(16));
+            }
+            names.add(name.toString());
+        }
+        for (String a : names) {
+            for (String b : names) {
+                assertCompare(a, b);
+            }
+        }
+    }
+
+    private static void assertCompare(String a, String b) {
+        int expected = Integer.signum(Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+        assertThat(Integer.signum(StationOrder.compare(a, b))).as("%s vs %s", a, b).isEqualTo(expected);
+    }
+}
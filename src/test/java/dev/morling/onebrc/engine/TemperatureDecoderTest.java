@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TemperatureDecoderTest {
+
+    private static final String NAME = "Hamburg;";
+
+    @ParameterizedTest
+    @ValueSource(strings = { "\n", "\r\n", "\nBosaso;-99.9\n", "\r\nPetropavlovsk-Kamchatsky;99.9\r\n" })
+    void decodesEveryValueFollowedByLineBreak(String tail) {
+        for (int value = TemperatureHistogram.MIN_VALUE; value <= TemperatureHistogram.MAX_VALUE; value++) {
+            String temperature = format(value);
+            byte[] line = (NAME + temperature + tail).getBytes(StandardCharsets.UTF_8);
+            assertDecodes(line, line.length, value, temperature);
+        }
+    }
+
+    @Test
+    void decodesEveryValueAtEndOfBuffer() {
+        for (int value = TemperatureHistogram.MIN_VALUE; value <= TemperatureHistogram.MAX_VALUE; value++) {
+            String temperature = format(value);
+            // bytes after the limit must not be read
+            byte[] line = (NAME + temperature + "99999999").getBytes(StandardCharsets.UTF_8);
+            assertDecodes(line, NAME.length() + temperature.length(), value, temperature);
+        }
+    }
+
+    @Test
+    void decodesNegativeZero() {
+        byte[] line = (NAME + "-0.0\n").getBytes(StandardCharsets.UTF_8);
+        assertDecodes(line, line.length, 0, "-0.0");
+    }
+
+    @Test
+    void decodesBoundarySamples() throws IOException {
+        List<String> lines = Files.readAllLines(Path.of("src/test/resources/samples/measurements-boundaries.txt"));
+        assertThat(lines).isNotEmpty();
+        for (String line : lines) {
+            String temperature = line.substring(line.indexOf(';') + 1);
+            int expected = new BigDecimal(temperature).movePointRight(1).intValueExact();
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            int offset = line.indexOf(';') + 1;
+
+            long word = TemperatureDecoder.word(bytes, offset, bytes.length);
+            assertThat(TemperatureDecoder.decode(word)).as(line).isEqualTo(expected);
+            assertThat(TemperatureDecoder.length(word)).as(line).isEqualTo(temperature.length());
+        }
+    }
+
+    private static void assertDecodes(byte[] line, int limit, int value, String temperature) {
+        int offset = NAME.length();
+        String description = Arrays.toString(Arrays.copyOfRange(line, offset, limit)) + " as " + temperature;
+
+        long word = TemperatureDecoder.word(line, offset, limit);
+        assertThat(TemperatureDecoder.decode(word)).as(description).isEqualTo(value);
+        assertThat(TemperatureDecoder.length(word)).as(description).isEqualTo(temperature.length());
+
+        for (ByteOrder order : List.of(ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line).limit(limit).order(order);
+            long bufferWord = TemperatureDecoder.word(buffer, offset);
+            assertThat(TemperatureDecoder.decode(bufferWord)).as(description + ", " + order).isEqualTo(value);
+            assertThat(TemperatureDecoder.length(bufferWord)).as(description + ", " + order).isEqualTo(temperature.length());
+        }
+    }
+
+    private static String format(int value) {
+        int absolute = Math.abs(value);
+        return (value < 0 ? "-" : "") + absolute / 10 + "." + absolute % 10;
+    }
+}
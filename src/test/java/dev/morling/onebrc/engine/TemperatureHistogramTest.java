@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TemperatureHistogramTest {
+
+    @Test
+    void keepsSlabHistogramsApart() {
+        TemperatureHistogram.Slab slab = new TemperatureHistogram.Slab();
+        TemperatureHistogram[] histograms = new TemperatureHistogram[3 * TemperatureHistogram.Slab.MAX_HISTOGRAMS];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = slab.allocate();
+            histograms[i].add(i - 99);
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            assertThat(histograms[i].count()).isEqualTo(1);
+            assertThat(histograms[i].median()).isEqualTo(i - 99);
+        }
+    }
+
+    @Test
+    void mergesCountersWithoutCarries() {
+        TemperatureHistogram slabHistogram = new TemperatureHistogram.Slab().allocate();
+        TemperatureHistogram other = new TemperatureHistogram();
+        for (int i = 0; i < 100; i++) {
+            slabHistogram.add(-999);
+            other.add(999);
+        }
+        other.add(0);
+
+        TemperatureHistogram merged = slabHistogram.merge(other);
+        assertThat(merged).isSameAs(slabHistogram);
+        assertThat(merged.count()).isEqualTo(201);
+        assertThat(merged.percentile(49)).isEqualTo(-999);
+        assertThat(merged.median()).isEqualTo(0);
+        assertThat(merged.percentile(51)).isEqualTo(999);
+        assertThat(other.count()).isEqualTo(101);
+    }
+
+    @Test
+    void carriesWhenMergedCountersOverflow() {
+        TemperatureHistogram histogram = new TemperatureHistogram.Slab().allocate();
+        TemperatureHistogram other = new TemperatureHistogram();
+        for (int i = 0; i < 40_000; i++) {
+            histogram.add(123);
+            other.add(123);
+        }
+        other.add(-5);
+
+        histogram.merge(other).merge(other.copy());
+        assertThat(histogram.count()).isEqualTo(120_002);
+        assertThat(histogram.percentile(0.001)).isEqualTo(-5);
+        assertThat(histogram.median()).isEqualTo(123);
+    }
+
+    @Test
+    void copiesCountersAndCarries() {
+        TemperatureHistogram histogram = new TemperatureHistogram.Slab().allocate();
+        for (int i = 0; i < 70_000; i++) {
+            histogram.add(7);
+        }
+
+        TemperatureHistogram copy = histogram.copy();
+        copy.add(8);
+        assertThat(copy.count()).isEqualTo(70_001);
+        assertThat(histogram.count()).isEqualTo(70_000);
+        assertThat(histogram.percentile(100)).isEqualTo(7);
+    }
+}